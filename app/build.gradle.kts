@@ -46,6 +46,15 @@ android {
         viewBinding = true
         buildConfig = true
     }
+    testOptions {
+        // android.util.Log and friends return defaults in JVM unit tests
+        unitTests.isReturnDefaultValues = true
+        // -Pfleet.instances=50 etc. reach FleetLoadTest as system properties
+        unitTests.all { test ->
+            project.properties.filterKeys { it.startsWith("fleet.") }
+                .forEach { (key, value) -> test.systemProperty(key, value.toString()) }
+        }
+    }
 }
 
 dependencies {
@@ -62,6 +71,10 @@ dependencies {
     implementation(libs.appcompat)
 
     testImplementation(libs.junit)
+    // Broker for the fleet load simulation
+    testImplementation(libs.hivemq.embedded)
+    // android.jar only has stubs of org.json, JVM tests need the real one
+    testImplementation(libs.org.json)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.stretter.shellyelevateservice;
+
+import android.util.Log;
+
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * NanoHTTPD runner with a fixed number of worker threads and a bounded accept queue.
+ *
+ * The default runner starts a thread per connection. Here a connection (and every keep-alive
+ * request on it) is served by a pool worker; connections that find both the pool and the
+ * queue full are turned away right away with a 503 instead of costing a thread. A worker
+ * waiting for the next request of a keep-alive connection is released by its read timeout,
+ * or right away when another connection has to queue for a worker.
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+
+    /**
+     * A client handler that can answer without being run, used to reject over capacity.
+     */
+    public interface Rejectable {
+        void reject();
+
+        // Blocked on the next request of a keep-alive connection, closing it loses nothing
+        boolean isIdle();
+    }
+
+    private final ThreadPoolExecutor executor;
+    // Both guarded by running
+    private final List<NanoHTTPD.ClientHandler> running = new ArrayList<>();
+    private final List<NanoHTTPD.ClientHandler> queued = new ArrayList<>();
+    private final MetricsRegistry.Histogram queueWait = new MetricsRegistry.Histogram();
+    private final MetricsRegistry.Counter rejected = new MetricsRegistry.Counter();
+
+    public BoundedAsyncRunner(int threads, int queueSize) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> {
+                    Thread t = new Thread(r, "http-worker-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("http_active_connections", this::getActiveConnections);
+        registry.gauge("http_queued_connections", this::getQueuedConnections);
+        registry.register("http_queue_wait_ms", queueWait);
+        registry.gauge("http_rejected_total", rejected::get);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        long enqueuedAt = System.nanoTime();
+        synchronized (running) {
+            queued.add(clientHandler);
+        }
+        try {
+            executor.execute(() -> {
+                synchronized (running) {
+                    // closeAll() closed it while it was waiting
+                    if (!queued.remove(clientHandler)) return;
+                    running.add(clientHandler);
+                }
+                queueWait.record((System.nanoTime() - enqueuedAt) / 1e6);
+                clientHandler.run();
+            });
+            if (!executor.getQueue().isEmpty()) closeIdle();
+        } catch (RejectedExecutionException e) {
+            synchronized (running) {
+                queued.remove(clientHandler);
+            }
+            rejected.inc();
+            Log.w("HttpServer", "All workers busy, rejecting connection");
+            if (clientHandler instanceof Rejectable) {
+                ((Rejectable) clientHandler).reject();
+            } else {
+                clientHandler.close();
+            }
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        synchronized (running) {
+            running.remove(clientHandler);
+        }
+    }
+
+    @Override
+    public void closeAll() {
+        List<NanoHTTPD.ClientHandler> handlers;
+        synchronized (running) {
+            handlers = new ArrayList<>(running);
+            handlers.addAll(queued);
+            // Their tasks find them gone and return without running
+            queued.clear();
+        }
+        for (NanoHTTPD.ClientHandler handler : handlers) {
+            handler.close();
+        }
+    }
+
+    /**
+     * A connection is waiting for a worker, take the workers back from connections that only
+     * sit on their keep-alive read timeout. A client that sends its next request just then
+     * sees the kept-alive connection closed, which HTTP clients retry on a new one.
+     */
+    private void closeIdle() {
+        List<NanoHTTPD.ClientHandler> idle = new ArrayList<>();
+        synchronized (running) {
+            for (NanoHTTPD.ClientHandler handler : running) {
+                if (handler instanceof Rejectable && ((Rejectable) handler).isIdle()) idle.add(handler);
+            }
+        }
+        for (NanoHTTPD.ClientHandler handler : idle) {
+            handler.close();
+        }
+    }
+
+    public int getActiveConnections() {
+        synchronized (running) {
+            return running.size();
+        }
+    }
+
+    public int getQueuedConnections() {
+        synchronized (running) {
+            return queued.size();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        closeAll();
+        executor.shutdownNow();
+    }
+}
@@ -8,6 +8,15 @@ public class Constants {
 
     //HTTP Server SP Keys
     public static final String SP_HTTP_SERVER_ENABLED = "httpServer";
+    public static final String SP_HTTP_WORKER_THREADS = "httpWorkerThreads";
+    public static final String SP_HTTP_ACCEPT_QUEUE = "httpAcceptQueue";
+    public static final String SP_HTTP_KEEP_ALIVE_MS = "httpKeepAliveMs";
+    public static final String SP_HTTP_EVENT_CLIENTS = "httpEventClients";
+    public static final String SP_HTTP_STATE_WAITERS = "httpStateWaiters";
+    public static final String SP_HTTP_MAX_BODY_KB = "httpMaxBodyKb";
+    public static final String SP_HTTP_RATE_READ = "httpRateRead";
+    public static final String SP_HTTP_RATE_WRITE = "httpRateWrite";
+    public static final String SP_HTTP_MAX_CONCURRENT_WRITES = "httpMaxConcurrentWrites";
 
     //Screen SP Keys
     public static final String SP_AUTOMATIC_BRIGHTNESS = "automaticBrightness";
@@ -27,6 +36,13 @@ public class Constants {
     public static final String SP_MQTT_USERNAME = "mqttUsername";
     public static final String SP_MQTT_PASSWORD = "mqttPassword";
     public static final String SP_MQTT_CLIENTID = "mqttDeviceId";
+    public static final String SP_MQTT_OFFLINE_BUFFER_KB = "mqttOfflineBufferKb";
+    public static final String SP_MQTT_PERSISTENT_SESSION = "mqttPersistentSession";
+    public static final String SP_MQTT_SESSION_EXPIRY_SEC = "mqttSessionExpirySec";
+    public static final String SP_MQTT_SENSOR_EXPIRY_SEC = "mqttSensorExpirySec";
+    public static final String SP_MQTT_CONSOLIDATED_STATE = "mqttConsolidatedState";
+    public static final String SP_MQTT_DIAGNOSTICS = "mqttDiagnostics";
+    public static final String SP_MQTT_BIRTH_JITTER_MS = "mqttBirthJitterMs";
 
     //Debug SP Keys
     public static final String SP_DEBUG_KEYS = "debugKeys";
@@ -52,6 +68,8 @@ public class Constants {
     //MQTT Topics
     public static final String MQTT_TOPIC_CONFIG_DEVICE = "homeassistant/device/%s/config";
     public static final String MQTT_TOPIC_STATUS = "shellyelevateservice/%s/status";
+    public static final String MQTT_TOPIC_STATE = "shellyelevateservice/%s/state";
+    public static final String MQTT_TOPIC_DIAGNOSTICS = "shellyelevateservice/%s/diagnostics";
     public static final String MQTT_TOPIC_TEMP_SENSOR = "shellyelevateservice/%s/temp";
     public static final String MQTT_TOPIC_HUM_SENSOR = "shellyelevateservice/%s/hum";
     public static final String MQTT_TOPIC_LUX_SENSOR = "shellyelevateservice/%s/lux";
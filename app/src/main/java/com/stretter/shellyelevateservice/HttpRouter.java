@@ -0,0 +1,142 @@
+package com.stretter.shellyelevateservice;
+
+import com.stretter.shellyelevateservice.RateLimiter.RouteClass;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Method + path to handler table for {@link HttpServer}, built once at startup.
+ *
+ * Paths are matched exactly with a single map lookup. An unknown path is answered with 404 and a
+ * known path with the wrong method with 405 and an Allow header, before any handler runs. Every
+ * route counts its hits and records its latency in the metrics registry.
+ *
+ * Each handler is a read or a write (GET defaults to read, POST to write). Before it runs the
+ * {@link RateLimiter} takes a token for the client, over budget the request gets 429 with a
+ * Retry-After header. Writes also need one of the concurrent write slots, when all are taken
+ * the request gets 503 and reads carry on unaffected.
+ */
+public class HttpRouter {
+
+    public interface Handler {
+        Response handle(IHTTPSession session) throws Exception;
+    }
+
+    private static final class Route {
+        final Map<Method, Handler> handlers = new EnumMap<>(Method.class);
+        final Map<Method, RouteClass> classes = new EnumMap<>(Method.class);
+        final MetricsRegistry.Counter hits = new MetricsRegistry.Counter();
+        final MetricsRegistry.Histogram latency = new MetricsRegistry.Histogram();
+        String allow;
+    }
+
+    private final Map<String, Route> routes = new HashMap<>();
+    private final RateLimiter limiter;
+    private final MetricsRegistry.Counter notFound = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter methodNotAllowed = new MetricsRegistry.Counter();
+
+    public HttpRouter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public HttpRouter get(String path, Handler handler) {
+        return add(Method.GET, path, RouteClass.READ, handler);
+    }
+
+    public HttpRouter post(String path, Handler handler) {
+        return add(Method.POST, path, RouteClass.WRITE, handler);
+    }
+
+    public synchronized HttpRouter add(Method method, String path, RouteClass routeClass, Handler handler) {
+        Route route = routes.get(path);
+        if (route == null) {
+            route = new Route();
+            routes.put(path, route);
+        }
+        route.handlers.put(method, handler);
+        route.classes.put(method, routeClass);
+
+        StringBuilder allow = new StringBuilder();
+        for (Method m : route.handlers.keySet()) {
+            if (allow.length() > 0) allow.append(", ");
+            allow.append(m.name());
+        }
+        route.allow = allow.toString();
+        return this;
+    }
+
+    /**
+     * Register hit counters and latency histograms for every route added so far.
+     */
+    public synchronized void registerMetrics(MetricsRegistry registry) {
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            registry.gauge("http_requests_total", route.hits::get, "route", entry.getKey());
+            registry.register("http_request_duration_ms", route.latency, "route", entry.getKey());
+        }
+        registry.gauge("http_not_found_total", notFound::get);
+        registry.gauge("http_method_not_allowed_total", methodNotAllowed::get);
+    }
+
+    /**
+     * Find and run the handler for a request. Exceptions from the handler are passed on so the
+     * server decides how they are reported.
+     */
+    public Response dispatch(IHTTPSession session) throws Exception {
+        Route route;
+        synchronized (this) {
+            route = routes.get(session.getUri());
+        }
+        if (route == null) {
+            notFound.inc();
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
+                    HttpServer.errorJson("Invalid request URI"));
+        }
+
+        Handler handler = route.handlers.get(session.getMethod());
+        if (handler == null) {
+            methodNotAllowed.inc();
+            Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "application/json",
+                    HttpServer.errorJson("Invalid request method"));
+            response.addHeader("Allow", route.allow);
+            return response;
+        }
+
+        RouteClass routeClass = route.classes.get(session.getMethod());
+        int retryAfter = limiter.acquire(session.getRemoteIpAddress(), routeClass);
+        if (retryAfter > 0) {
+            return retryLater(Response.Status.TOO_MANY_REQUESTS, "Too many requests", retryAfter);
+        }
+        Semaphore writeSlot = null;
+        if (routeClass == RouteClass.WRITE && limiter.limitsWrites()) {
+            writeSlot = limiter.tryAcquireWrite();
+            if (writeSlot == null) {
+                return retryLater(Response.Status.SERVICE_UNAVAILABLE, "Too many concurrent writes", 1);
+            }
+        }
+
+        route.hits.inc();
+        long start = System.nanoTime();
+        try {
+            return handler.handle(session);
+        } finally {
+            route.latency.record((System.nanoTime() - start) / 1e6);
+            if (writeSlot != null) writeSlot.release();
+        }
+    }
+
+    static Response retryLater(Response.Status status, String message, int seconds) {
+        Response response = NanoHTTPD.newFixedLengthResponse(status, "application/json", HttpServer.errorJson(message));
+        response.addHeader("Retry-After", String.valueOf(seconds));
+        return response;
+    }
+}
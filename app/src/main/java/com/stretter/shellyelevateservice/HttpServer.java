@@ -3,17 +3,28 @@ package com.stretter.shellyelevateservice;
 import static com.stretter.shellyelevateservice.Constants.INTENT_SETTINGS_CHANGED;
 import static com.stretter.shellyelevateservice.Constants.INTENT_SCREEN_SAVER_STARTED;
 import static com.stretter.shellyelevateservice.Constants.INTENT_SCREEN_SAVER_STOPPED;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_ACCEPT_QUEUE;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_EVENT_CLIENTS;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_STATE_WAITERS;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_KEEP_ALIVE_MS;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_MAX_BODY_KB;
 import static com.stretter.shellyelevateservice.Constants.SP_HTTP_SERVER_ENABLED;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_WORKER_THREADS;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mApplicationContext;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mCommandExecutor;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mDeviceHelper;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mDeviceSensorManager;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mEventStream;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMQTTServer;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMediaHelper;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMetricsRegistry;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mSharedPreferences;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -22,28 +33,154 @@ import android.widget.Toast;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import com.stretter.shellyelevateservice.RateLimiter.RouteClass;
+import com.stretter.shellyelevateservice.helper.CommandExecutor;
+import com.stretter.shellyelevateservice.helper.CommandExecutor.Lane;
+import com.stretter.shellyelevateservice.helper.DeviceHelper;
+import com.stretter.shellyelevateservice.helper.EventStream;
+import com.stretter.shellyelevateservice.helper.JsonWriter;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 import fi.iki.elonen.NanoHTTPD;
 
 public class HttpServer extends NanoHTTPD {
+    // How long a request waits for its command before giving up, the command itself still runs
+    private static final long COMMAND_TIMEOUT_MS = 5000;
+
+    // Longest a /device/state long-poll may wait for a change
+    private static final long MAX_STATE_WAIT_MS = 30000;
+
+    // Operations accepted in one /device/batch request
+    private static final int MAX_BATCH_OPERATIONS = 32;
+
+    // Added to COMMAND_TIMEOUT_MS per batch operation
+    private static final long BATCH_OPERATION_TIMEOUT_MS = 1000;
+
     SettingsParser mSettingsParser = new SettingsParser();
+    private final BoundedAsyncRunner mAsyncRunner;
+    private final HttpRouter mRouter;
+    private final RateLimiter mRateLimiter;
+
+    private static final class CommandException extends Exception {
+        final Response.Status status;
+        // The command was accepted and may still be running
+        final boolean pending;
+
+        CommandException(Response.Status status, String message) {
+            this(status, message, false);
+        }
+
+        CommandException(Response.Status status, String message, boolean pending) {
+            super(message);
+            this.status = status;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * A serialized response body and its ETag, for endpoints that rarely change.
+     */
+    private static final class CachedJson {
+        final byte[] body;
+        final String etag;
+
+        CachedJson(String json) {
+            body = json.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            etag = "\"" + Long.toHexString(crc.getValue()) + "\"";
+        }
+    }
+
+    // Device info only changes with an app update, which restarts the process
+    private volatile CachedJson mInfoCache;
+    // Dropped on every preference write, whoever makes it
+    private CachedJson mSettingsCache;
+    private long mSettingsGeneration;
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsCacheInvalidator = (prefs, key) -> {
+        synchronized (this) {
+            mSettingsGeneration++;
+            mSettingsCache = null;
+        }
+    };
+
+    // Body of the request being served on this worker, read before routing
+    private static final ThreadLocal<String> sRequestBody = new ThreadLocal<>();
+    // Connection the current worker thread is serving
+    private static final ThreadLocal<RejectableClientHandler> sConnection = new ThreadLocal<>();
+
+    /**
+     * Bodies are read into memory by the server itself, NanoHTTPD never needs a temp file.
+     * Nothing is created per connection either, unlike the default manager.
+     */
+    private static final class NoTempFileManager implements TempFileManager {
+        @Override
+        public void clear() {}
+
+        @Override
+        public TempFile createTempFile(String filenameHint) throws Exception {
+            throw new IOException("Request bodies are kept in memory");
+        }
+    }
+
+    private static final class BatchOperation {
+        final String op;
+        final Lane lane;
+        final Callable<Object> action;
+
+        BatchOperation(String op, Lane lane, Callable<Object> action) {
+            this.op = op;
+            this.lane = lane;
+            this.action = action;
+        }
+    }
 
     public HttpServer() {
         super(8080);
 
+        // Pool size and queue are applied when the server is created
+        mAsyncRunner = new BoundedAsyncRunner(
+                Math.max(1, mSharedPreferences.getInt(SP_HTTP_WORKER_THREADS, 4)),
+                mSharedPreferences.getInt(SP_HTTP_ACCEPT_QUEUE, 16));
+        setAsyncRunner(mAsyncRunner);
+        NoTempFileManager tempFileManager = new NoTempFileManager();
+        setTempFileManagerFactory(() -> tempFileManager);
+        mRateLimiter = new RateLimiter(mSharedPreferences);
+        mRouter = buildRoutes();
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mSettingsCacheInvalidator);
+        if (mMetricsRegistry != null) {
+            mAsyncRunner.registerMetrics(mMetricsRegistry);
+            mRouter.registerMetrics(mMetricsRegistry);
+            mRateLimiter.registerMetrics(mMetricsRegistry);
+        }
+
         LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(mApplicationContext);
         BroadcastReceiver settingsChangedBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                mRateLimiter.load(mSharedPreferences);
                 if (mSharedPreferences.getBoolean(SP_HTTP_SERVER_ENABLED, true) && !isAlive()) {
                     try {
-                        start();
+                        startServer();
                     } catch (IOException e) {
                         Log.d("HttpServer", "Failed to start http server: " + e);
                     }
@@ -55,325 +192,765 @@ public class HttpServer extends NanoHTTPD {
         localBroadcastManager.registerReceiver(settingsChangedBroadcastReceiver, new IntentFilter(INTENT_SETTINGS_CHANGED));
     }
 
+    /**
+     * Start listening. Requests are read with NanoHTTPD's socket read timeout, the wait for the
+     * next request on a keep-alive connection with httpKeepAliveMs (see KeepAliveInputStream).
+     */
+    public void startServer() throws IOException {
+        start(SOCKET_READ_TIMEOUT, false);
+    }
+
     @Override
-    public Response serve(IHTTPSession session) {
-        Method method = session.getMethod();
-        String uri = session.getUri();
-        JSONObject jsonResponse = new JSONObject();
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        int keepAliveMs = Math.max(1000, mSharedPreferences.getInt(SP_HTTP_KEEP_ALIVE_MS, 5000));
+        return new RejectableClientHandler(new KeepAliveInputStream(inputStream, finalAccept, keepAliveMs), finalAccept);
+    }
 
-        try {
-            if (uri.startsWith("/media/")) {
-                return handleMediaRequest(session);
-            } else if (uri.startsWith("/device/")) {
-                return handleDeviceRequest(session);
-            } else if (uri.equals("/settings")) {
-                if (method.equals(Method.GET)) {
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("settings", mSettingsParser.getSettings());
-                } else if (method.equals(Method.POST)) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String postData = files.get("postData");
-                    assert postData != null;
-                    JSONObject jsonObject = new JSONObject(postData);
+    /**
+     * Socket input that reads with the keep-alive timeout while waiting for the next request on
+     * a connection, and with the read timeout again once it arrives. An idle keep-alive
+     * connection then gives its worker back after httpKeepAliveMs.
+     */
+    private static final class KeepAliveInputStream extends FilterInputStream {
+        private final Socket socket;
+        private final int keepAliveMs;
+        // Worker thread only: a response went out, the next read waits for a new request
+        private boolean betweenRequests;
+        private volatile boolean idle;
+
+        KeepAliveInputStream(InputStream in, Socket socket, int keepAliveMs) {
+            super(in);
+            this.socket = socket;
+            this.keepAliveMs = keepAliveMs;
+        }
+
+        void requestServed() {
+            betweenRequests = true;
+        }
 
-                    mSettingsParser.setSettings(jsonObject);
+        boolean isIdle() {
+            return idle;
+        }
 
-                    // Notify components of settings change (triggers MQTT reconnect, etc.)
-                    Intent settingsIntent = new Intent(INTENT_SETTINGS_CHANGED);
-                    LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(settingsIntent);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!betweenRequests) return super.read(b, off, len);
+            betweenRequests = false;
+            int readTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(keepAliveMs);
+            idle = true;
+            try {
+                return super.read(b, off, len);
+            } finally {
+                idle = false;
+                if (!socket.isClosed()) socket.setSoTimeout(readTimeout);
+            }
+        }
+    }
 
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("settings", mSettingsParser.getSettings());
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                return newFixedLengthResponse(Response.Status.OK, "application/json", jsonResponse.toString());
-            } else if (uri.equals("/")) {
-                JSONObject json = new JSONObject();
+    private class RejectableClientHandler extends ClientHandler implements BoundedAsyncRunner.Rejectable {
+        private final Socket socket;
+        private final KeepAliveInputStream input;
 
-                try {
-                    json.put("name", mApplicationContext.getPackageName());
+        RejectableClientHandler(KeepAliveInputStream input, Socket socket) {
+            super(input, socket);
+            this.socket = socket;
+            this.input = input;
+        }
 
-                    String version = "unknown";
-                    try {
-                        PackageInfo pInfo = mApplicationContext.getPackageManager()
-                                .getPackageInfo(mApplicationContext.getPackageName(), 0);
-                        version = pInfo.versionName;
-                    } catch (PackageManager.NameNotFoundException ignored) {}
-
-                    json.put("version", version);
-                    var device = DeviceModel.getReportedDevice();
-                    json.put("modelName", device.name());
-                    json.put("proximity", device.hasProximitySensor ? "true" : "false");
-                    json.put("numOfButtons", device.buttons);
-                    json.put("numOfInputs", device.inputs);
-                } catch (JSONException e) {
-                    Log.e("MQTT", "Error publishing hello", e);
-                }
+        @Override
+        public void run() {
+            sConnection.set(this);
+            try {
+                super.run();
+            } finally {
+                sConnection.remove();
+            }
+        }
 
-                return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString());
+        @Override
+        public boolean isIdle() {
+            return input.isIdle();
+        }
+
+        @Override
+        public void reject() {
+            // Answer without parsing the request, the point is to stay cheap under overload
+            byte[] body = errorJson("Server busy").getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Retry-After: 1\r\n"
+                    + "Connection: close\r\n\r\n";
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(head.getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                Log.d("HttpServer", "Failed to send 503: " + e);
+            } finally {
+                close();
             }
-        } catch (JSONException | ResponseException | IOException e) {
+        }
+    }
+
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+        // A gzip stream would hold events back until its buffer fills
+        return !"text/event-stream".equals(response.getMimeType()) && super.useGzipWhenAccepted(response);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        try {
+            sRequestBody.set(readRequestBody(session));
+            return mRouter.dispatch(session);
+        } catch (ResponseException e) {
+            Response response = newFixedLengthResponse(e.getStatus(), "application/json", errorJson(e.getMessage()));
+            // The body is left unread, the connection can't carry another request
+            response.closeConnection(true);
+            return response;
+        } catch (CommandException e) {
+            return newFixedLengthResponse(e.status, "application/json", errorJson(e.getMessage()));
+        } catch (JSONException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json", errorJson("Invalid request: " + e.getMessage()));
+        } catch (Exception e) {
             Log.e("HttpServer", "Error handling request", e);
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json", errorJson(String.valueOf(e)));
+        } finally {
+            sRequestBody.remove();
+            RejectableClientHandler connection = sConnection.get();
+            if (connection != null) connection.input.requestServed();
         }
+    }
+
+    /**
+     * Read the request body into memory, bodies over httpMaxBodyKb are refused before any of it
+     * is read. Requests without a Content-Length (GETs) have no body and cost nothing here.
+     */
+    private static String readRequestBody(IHTTPSession session) throws IOException, ResponseException {
+        String contentLength = session.getHeaders().get("content-length");
+        if (contentLength == null) return null;
 
-        return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json", jsonResponse.toString());
+        long length;
+        try {
+            length = Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new ResponseException(Response.Status.BAD_REQUEST, "Invalid Content-Length");
+        }
+        if (length <= 0) return null;
+
+        long maxLength = Math.max(1, mSharedPreferences.getInt(SP_HTTP_MAX_BODY_KB, 64)) * 1024L;
+        if (length > maxLength) {
+            throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "Request body is larger than " + (maxLength / 1024) + " KB");
+        }
+
+        byte[] body = new byte[(int) length];
+        InputStream in = session.getInputStream();
+        int read = 0;
+        while (read < body.length) {
+            int n = in.read(body, read, body.length - read);
+            if (n < 0) throw new ResponseException(Response.Status.BAD_REQUEST, "Request body ended early");
+            read += n;
+        }
+        return new String(body, StandardCharsets.UTF_8);
     }
 
-    private Response handleMediaRequest(IHTTPSession session) throws JSONException, ResponseException, IOException {
-        Method method = session.getMethod();
-        String uri = session.getUri();
-        JSONObject jsonResponse = new JSONObject();
+    /**
+     * Every endpoint of the server. Only handlers that take a body parse one.
+     */
+    private HttpRouter buildRoutes() {
+        return new HttpRouter(mRateLimiter)
+                .get("/", this::getInfo)
+                .get("/events", this::events)
+                .get("/metrics", this::metrics)
+                .get("/settings", this::getSettings)
+                .post("/settings", this::postSettings)
+                .post("/media/play", this::mediaPlay)
+                .post("/media/pause", session -> mediaCommand("pause", () -> mMediaHelper.pauseMusic()))
+                .post("/media/resume", session -> mediaCommand("resume", () -> mMediaHelper.resumeMusic()))
+                .post("/media/stop", session -> mediaCommand("stop", () -> mMediaHelper.stopAll()))
+                .get("/media/volume", this::getVolume)
+                .post("/media/volume", this::postVolume)
+                .get("/device/relay", this::getRelay)
+                .post("/device/relay", this::postRelay)
+                .get("/device/getTemperature", session -> jsonValue("temperature", mDeviceHelper.getTemperature()))
+                .get("/device/getHumidity", session -> jsonValue("humidity", mDeviceHelper.getHumidity()))
+                .get("/device/getLux", session -> jsonValue("lux", mDeviceSensorManager.getLastMeasuredLux()))
+                .get("/device/getProximity", this::getProximity)
+                .get("/device/state", this::getState)
+                // Effective MQTT reporting rules, change them through /settings
+                .get("/device/reporting", session -> jsonValue("reporting", mMQTTServer.getReportingPolicy().toJson()))
+                .get("/device/commands", session -> jsonValue("commands", mCommandExecutor.toJson()))
+                // Accept both GET and POST for convenience
+                .add(Method.GET, "/device/wake", RouteClass.WRITE, this::wake)
+                .post("/device/wake", this::wake)
+                .add(Method.GET, "/device/sleep", RouteClass.WRITE, this::sleep)
+                .post("/device/sleep", this::sleep)
+                .post("/device/reboot", this::reboot)
+                .post("/device/launchApp", this::launchApp)
+                .post("/device/batch", this::batch);
+    }
 
-        switch (uri.replace("/media/", "")) {
-            case "play":
-                if (method.equals(Method.POST)) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String postData = files.get("postData");
-                    assert postData != null;
-                    JSONObject jsonObject = new JSONObject(postData);
+    /**
+     * Run an action on the command executor and wait for it, so the response reflects the result.
+     */
+    private static <T> T runCommand(Lane lane, String name, Callable<T> action) throws CommandException {
+        return runCommand(lane, name, COMMAND_TIMEOUT_MS, action);
+    }
 
-                    Uri mediaUri = Uri.parse(jsonObject.getString("url"));
-                    boolean music = jsonObject.getBoolean("music");
-                    double volume = jsonObject.getDouble("volume");
+    private static <T> T runCommand(Lane lane, String name, long timeoutMs, Callable<T> action) throws CommandException {
+        Future<T> future = mCommandExecutor.submit(lane, name, action);
+        if (future == null) {
+            throw new CommandException(Response.Status.SERVICE_UNAVAILABLE, "Too many pending commands");
+        }
+        try {
+            return CommandExecutor.await(future, timeoutMs);
+        } catch (TimeoutException e) {
+            throw new CommandException(Response.Status.SERVICE_UNAVAILABLE, "Command timed out", true);
+        } catch (ExecutionException e) {
+            Log.e("HttpServer", "Command " + name + " failed", e.getCause());
+            throw new CommandException(Response.Status.INTERNAL_ERROR, "Command failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandException(Response.Status.SERVICE_UNAVAILABLE, "Interrupted");
+        }
+    }
 
-                    mMediaHelper.setVolume(volume);
+    static String errorJson(String error) {
+        return new JsonWriter(64).beginObject()
+                .name("success").value(false)
+                .name("error").value(error)
+                .endObject().toString();
+    }
 
-                    if (music) {
-                        mMediaHelper.playMusic(mediaUri);
-                    } else {
-                        mMediaHelper.playEffect(mediaUri);
-                    }
+    /**
+     * Request body as posted, or null if there is none.
+     */
+    private static String readBody(IHTTPSession session) {
+        return sRequestBody.get();
+    }
 
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("url", jsonObject.getString("url"));
-                    jsonResponse.put("music", music);
-                    jsonResponse.put("volume", volume);
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "pause":
-                if (method.equals(Method.POST)) {
-                    mMediaHelper.pauseMusic();
-                    jsonResponse.put("success", true);
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "resume":
-                if (method.equals(Method.POST)) {
-                    mMediaHelper.resumeMusic();
-                    jsonResponse.put("success", true);
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "stop":
-                if (method.equals(Method.POST)) {
-                    mMediaHelper.stopAll();
-                    jsonResponse.put("success", true);
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "volume":
-                if (method.equals(Method.POST)) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String postData = files.get("postData");
-                    assert postData != null;
-                    JSONObject jsonObject = new JSONObject(postData);
+    private static JSONObject readJsonBody(IHTTPSession session) throws JSONException {
+        String postData = readBody(session);
+        if (postData == null) throw new JSONException("Missing request body");
+        return new JSONObject(postData);
+    }
 
-                    double volume = jsonObject.getDouble("volume");
+    private static Response jsonResponse(JSONObject json) {
+        return newFixedLengthResponse(json.optBoolean("success") ? Response.Status.OK : Response.Status.INTERNAL_ERROR, "application/json", json.toString());
+    }
 
-                    mMediaHelper.setVolume(volume);
+    /**
+     * Send a body written into {@link JsonWriter#forThread()}. The buffer is handed over without
+     * a copy, NanoHTTPD writes it out on this thread before the next request is handled.
+     */
+    private static Response jsonResponse(JsonWriter json, boolean success) {
+        return newFixedLengthResponse(success ? Response.Status.OK : Response.Status.INTERNAL_ERROR, "application/json",
+                json.toInputStream(), json.size());
+    }
 
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("volume", mMediaHelper.getVolume());
-                } else if (method.equals(Method.GET)) {
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("volume", mMediaHelper.getVolume());
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            default:
-                jsonResponse.put("success", false);
-                jsonResponse.put("error", "Invalid request URI");
-                break;
+    private static Response success() {
+        return jsonResponse(JsonWriter.forThread().beginObject().name("success").value(true).endObject(), true);
+    }
+
+    private static Response jsonValue(String key, double value) {
+        return jsonResponse(JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name(key).value(value)
+                .endObject(), true);
+    }
+
+    private static Response jsonValue(String key, boolean value) {
+        return jsonResponse(JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name(key).value(value)
+                .endObject(), true);
+    }
+
+    // For bodies that are built as JSONObject anyway, e.g. settings and reporting rules
+    private static Response jsonValue(String key, JSONObject value) {
+        return jsonResponse(JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name(key).rawValue(value.toString())
+                .endObject(), true);
+    }
+
+    /**
+     * Serve a cached body, or 304 if the client already has this version.
+     */
+    private static Response cachedResponse(IHTTPSession session, CachedJson cached) {
+        Response response;
+        if (etagMatches(session.getHeaders().get("if-none-match"), cached.etag)) {
+            response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, "application/json", "");
+        } else {
+            response = newFixedLengthResponse(Response.Status.OK, "application/json",
+                    new ByteArrayInputStream(cached.body), cached.body.length);
         }
+        response.addHeader("ETag", cached.etag);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
 
-        return newFixedLengthResponse(jsonResponse.getBoolean("success") ? Response.Status.OK : Response.Status.INTERNAL_ERROR, "application/json", jsonResponse.toString());
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
     }
 
-    private Response handleDeviceRequest(IHTTPSession session) throws JSONException, ResponseException, IOException {
-        Method method = session.getMethod();
-        String uri = session.getUri();
-        JSONObject jsonResponse = new JSONObject();
+    private Response getInfo(IHTTPSession session) {
+        CachedJson cached = mInfoCache;
+        if (cached == null) {
+            cached = new CachedJson(buildInfo());
+            mInfoCache = cached;
+        }
+        return cachedResponse(session, cached);
+    }
+
+    private String buildInfo() {
+        JSONObject json = new JSONObject();
 
-        // Parse query parameters
-        Map<String, String> params = new HashMap<>();
         try {
-            session.parseBody(new HashMap<>());
-            params.putAll(session.getParms());
-        } catch (IOException | ResponseException e) {
-            Log.e("HttpServer", "Invalid parameters", e);
+            json.put("name", mApplicationContext.getPackageName());
+
+            String version = "unknown";
+            try {
+                PackageInfo pInfo = mApplicationContext.getPackageManager()
+                        .getPackageInfo(mApplicationContext.getPackageName(), 0);
+                version = pInfo.versionName;
+            } catch (PackageManager.NameNotFoundException ignored) {}
+
+            json.put("version", version);
+            var device = DeviceModel.getReportedDevice();
+            json.put("modelName", device.name());
+            json.put("proximity", device.hasProximitySensor ? "true" : "false");
+            json.put("numOfButtons", device.buttons);
+            json.put("numOfInputs", device.inputs);
+        } catch (JSONException e) {
+            Log.e("MQTT", "Error publishing hello", e);
         }
 
-        DeviceModel device = DeviceModel.getReportedDevice();
+        return json.toString();
+    }
 
-        switch (uri.replace("/device/", "")) {
-            case "relay":
-                if (method.equals(Method.GET)) {
-                    var num = GetNumParameter(params, 0);
-                    if (num == -999) return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "Invalid num");
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("state", mDeviceHelper.getRelay(num));
-                } else if (method.equals(Method.POST)) {
-                    var num = GetNumParameter(params, -1);
-                    if (num == -999) return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "Invalid num");
+    /**
+     * All registered metrics in the Prometheus text format, rendered straight from the registry
+     * into this worker's reusable buffer.
+     */
+    private Response metrics(IHTTPSession session) throws IOException {
+        JsonWriter body = JsonWriter.forThread();
+        mMetricsRegistry.writePrometheus(body);
+        return newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4; charset=utf-8",
+                body.toInputStream(), body.size());
+    }
 
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String postData = files.get("postData");
-                    assert postData != null;
-                    JSONObject jsonObject = new JSONObject(postData);
+    /**
+     * Server-Sent Events stream of sensor, button, relay and screen changes. The stream holds a
+     * worker for as long as the client stays connected, so the number of clients is capped.
+     */
+    private Response events(IHTTPSession session) {
+        EventStream.Subscriber subscriber = mEventStream.subscribe(mSharedPreferences.getInt(SP_HTTP_EVENT_CLIENTS, 2));
+        if (subscriber == null) {
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, "application/json", errorJson("Too many event clients"));
+        }
+        Response response = newChunkedResponse(Response.Status.OK, "text/event-stream", subscriber);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
 
-                    // num as json body
-                    if (num == -1 && jsonObject.getInt("num")>=0)
-                        num = jsonObject.getInt("num");
+    private Response getSettings(IHTTPSession session) throws JSONException {
+        CachedJson cached;
+        long generation;
+        synchronized (this) {
+            cached = mSettingsCache;
+            generation = mSettingsGeneration;
+        }
+        if (cached == null) {
+            JSONObject json = new JSONObject();
+            json.put("success", true);
+            json.put("settings", mSettingsParser.getSettings());
+            cached = new CachedJson(json.toString());
+            synchronized (this) {
+                // Don't keep it if a write landed while it was being built
+                if (generation == mSettingsGeneration) mSettingsCache = cached;
+            }
+        }
+        return cachedResponse(session, cached);
+    }
 
-                    mDeviceHelper.setRelay(num, jsonObject.getBoolean("state"));
+    private Response postSettings(IHTTPSession session) throws JSONException {
+        List<String> rejected = mSettingsParser.setSettings(readJsonBody(session));
+        if (!rejected.isEmpty()) {
+            JSONObject jsonResponse = new JSONObject();
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Values don't match the setting types, nothing was stored");
+            jsonResponse.put("rejected", new JSONArray(rejected));
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json", jsonResponse.toString());
+        }
 
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("state", mDeviceHelper.getRelay(num));
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "getTemperature":
-                if (method.equals(Method.GET)) {
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("temperature", mDeviceHelper.getTemperature());
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
-            case "getHumidity":
-                if (method.equals(Method.GET)) {
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("humidity", mDeviceHelper.getHumidity());
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
+        // Notify components of settings change (triggers MQTT reconnect, etc.)
+        Intent settingsIntent = new Intent(INTENT_SETTINGS_CHANGED);
+        LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(settingsIntent);
+
+        return jsonValue("settings", mSettingsParser.getSettings());
+    }
+
+    private Response mediaPlay(IHTTPSession session) throws JSONException, CommandException {
+        JSONObject jsonObject = readJsonBody(session);
+
+        Uri mediaUri = Uri.parse(jsonObject.getString("url"));
+        boolean music = jsonObject.getBoolean("music");
+        double volume = jsonObject.getDouble("volume");
+
+        runCommand(Lane.MEDIA, "play", () -> {
+            mMediaHelper.setVolume(volume);
+
+            if (music) {
+                mMediaHelper.playMusic(mediaUri);
+            } else {
+                mMediaHelper.playEffect(mediaUri);
+            }
+            return null;
+        });
+
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", true);
+        jsonResponse.put("url", jsonObject.getString("url"));
+        jsonResponse.put("music", music);
+        jsonResponse.put("volume", volume);
+        return jsonResponse(jsonResponse);
+    }
+
+    private Response mediaCommand(String name, Runnable action) throws CommandException {
+        runCommand(Lane.MEDIA, name, () -> {
+            action.run();
+            return null;
+        });
+        return success();
+    }
+
+    private Response getVolume(IHTTPSession session) {
+        return jsonValue("volume", mMediaHelper.getVolume());
+    }
+
+    private Response postVolume(IHTTPSession session) throws JSONException, CommandException {
+        double volume = readJsonBody(session).getDouble("volume");
+
+        runCommand(Lane.MEDIA, "volume", () -> {
+            mMediaHelper.setVolume(volume);
+            return null;
+        });
+
+        return jsonValue("volume", mMediaHelper.getVolume());
+    }
+
+    private Response getRelay(IHTTPSession session) {
+        var num = GetNumParameter(session.getParms(), 0);
+        if (num == -999) return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "Invalid num");
+        return jsonValue("state", mDeviceHelper.getRelay(num));
+    }
+
+    private Response postRelay(IHTTPSession session) throws JSONException, CommandException {
+        JSONObject jsonObject = readJsonBody(session);
+
+        var num = GetNumParameter(session.getParms(), -1);
+        if (num == -999) return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "Invalid num");
+
+        // num as json body
+        if (num == -1 && jsonObject.getInt("num")>=0)
+            num = jsonObject.getInt("num");
+
+        int relay = num;
+        boolean state = jsonObject.getBoolean("state");
+        boolean newState = runCommand(Lane.CONTROL, "relay", () -> {
+            mDeviceHelper.setRelay(relay, state);
+            return mDeviceHelper.getRelay(relay);
+        });
+
+        return jsonValue("state", newState);
+    }
+
+    /**
+     * All readings from the in-memory snapshot, no sysfs access. With ?since=<version>&wait=<ms>
+     * the request is held until the state version moves past since or the wait runs out. Every
+     * waiting request holds a worker, over the waiter limit the client is told to come back
+     * instead of getting an immediate answer it would poll again right away.
+     */
+    private Response getState(IHTTPSession session) {
+        Map<String, String> params = session.getParms();
+        try {
+            long since = Long.parseLong(params.getOrDefault("since", "-1"));
+            long wait = Math.min(MAX_STATE_WAIT_MS, Long.parseLong(params.getOrDefault("wait", "0")));
+            if (since >= 0 && wait > 0
+                    && mEventStream.awaitChange(since, wait, mSharedPreferences.getInt(SP_HTTP_STATE_WAITERS, 1)) < 0) {
+                return HttpRouter.retryLater(Response.Status.SERVICE_UNAVAILABLE, "Too many waiting clients", 1);
+            }
+        } catch (NumberFormatException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json", errorJson("Invalid since or wait"));
+        }
+
+        JsonWriter json = JsonWriter.forThread().beginObject().name("success").value(true);
+        // Version and values from the same moment
+        synchronized (mEventStream) {
+            json.name("version").value(mEventStream.getStateVersion()).name("state");
+            mEventStream.writeSnapshot(json);
+        }
+        return jsonResponse(json.endObject(), true);
+    }
+
+    private Response getProximity(IHTTPSession session) {
+        if (!DeviceModel.getReportedDevice().hasProximitySensor) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
+                    errorJson("This device doesn't support proximity sensor measurement"));
+        }
+        return jsonValue("distance", mDeviceSensorManager.getLastMeasuredDistance());
+    }
+
+    private Response wake(IHTTPSession session) throws CommandException {
+        Log.i("HttpServer", "Wake request received");
+        runCommand(Lane.CONTROL, "wake", () -> LocalBroadcastManager.getInstance(mApplicationContext)
+                .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STOPPED)));
+        return success();
+    }
+
+    private Response sleep(IHTTPSession session) throws CommandException {
+        Log.i("HttpServer", "Sleep request received");
+        runCommand(Lane.CONTROL, "sleep", () -> LocalBroadcastManager.getInstance(mApplicationContext)
+                .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STARTED)));
+        return success();
+    }
+
+    private Response reboot(IHTTPSession session) throws JSONException, CommandException {
+        boolean rebooting = runCommand(Lane.DIAGNOSTICS, "reboot", () -> {
+            long deltaTime = System.currentTimeMillis() - ShellyElevateApplication.getApplicationStartTime();
+            deltaTime /= 1000;
+            if (deltaTime > 20) {
+                try {
+                    Runtime.getRuntime().exec("reboot");
+                    return true;
+                } catch (IOException e) {
+                    Log.e("HttpServer", "Error rebooting:", e);
                 }
-                break;
-            case "getLux":
-                if (method.equals(Method.GET)) {
+            } else {
+                Toast.makeText(mApplicationContext, "Please wait %s seconds before rebooting".replace("%s", String.valueOf(20 - deltaTime)), Toast.LENGTH_LONG).show();
+            }
+            return false;
+        });
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", rebooting);
+        return jsonResponse(jsonResponse);
+    }
+
+    private Response launchApp(IHTTPSession session) throws JSONException {
+        JSONObject jsonResponse = new JSONObject();
+        String postData = readBody(session);
+        if (postData != null) {
+            JSONObject jsonObject = new JSONObject(postData);
+            String packageName = jsonObject.optString("package", "io.homeassistant.companion.android.minimal");
+            try {
+                boolean launched = runCommand(Lane.CONTROL, "launchApp", () -> {
+                    Intent launchIntent = mApplicationContext.getPackageManager().getLaunchIntentForPackage(packageName);
+                    if (launchIntent == null) return false;
+                    launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    launchIntent.addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+                    mApplicationContext.startActivity(launchIntent);
+                    return true;
+                });
+                if (launched) {
                     jsonResponse.put("success", true);
-                    jsonResponse.put("lux", mDeviceSensorManager.getLastMeasuredLux());
+                    jsonResponse.put("package", packageName);
                 } else {
                     jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
+                    jsonResponse.put("error", "App not installed: " + packageName);
                 }
-                break;
-            case "getProximity":
-                if (method.equals(Method.GET)) {
+            } catch (CommandException e) {
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "Failed to launch: " + e.getMessage());
+            }
+        } else {
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Missing package parameter");
+        }
+        return jsonResponse(jsonResponse);
+    }
 
-                    if (device.hasProximitySensor) {
-                        jsonResponse.put("success", true);
-                        jsonResponse.put("distance", mDeviceSensorManager.getLastMeasuredDistance());
-                    } else {
-                        jsonResponse.put("success", false);
-                        jsonResponse.put("error", "This device doesn't support proximity sensor measurement");
-                    }
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
+
+    /**
+     * Several operations in one request, e.g. a scene. Every operation is validated before any of
+     * them runs, one invalid operation rejects the whole batch with 400. Each operation is then its
+     * own command on its own lane, so relay commands from MQTT don't wait behind a batch of media
+     * operations. Operations on the same lane run in order; an operation that fails doesn't stop
+     * the ones after it.
+     *
+     * The wait grows with the number of operations. A batch that still runs when it is over gets
+     * 202 with the results of the operations finished so far.
+     */
+    private Response batch(IHTTPSession session) throws JSONException, CommandException {
+        JSONArray operations = readJsonBody(session).getJSONArray("operations");
+        if (operations.length() > MAX_BATCH_OPERATIONS) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
+                    errorJson("At most " + MAX_BATCH_OPERATIONS + " operations per batch"));
+        }
+
+        List<BatchOperation> batch = new ArrayList<>(operations.length());
+        JSONArray errors = new JSONArray();
+        for (int i = 0; i < operations.length(); i++) {
+            try {
+                batch.add(prepareOperation(operations.getJSONObject(i)));
+            } catch (JSONException e) {
+                JSONObject error = new JSONObject();
+                error.put("index", i);
+                error.put("error", e.getMessage());
+                errors.put(error);
+            }
+        }
+        if (errors.length() > 0) {
+            JSONObject jsonResponse = new JSONObject();
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Invalid batch, nothing was executed");
+            jsonResponse.put("errors", errors);
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json", jsonResponse.toString());
+        }
+
+        // The router charged one write token, every further operation costs another
+        int retryAfter = mRateLimiter.acquire(session.getRemoteIpAddress(), RouteClass.WRITE, batch.size() - 1);
+        if (retryAfter > 0) {
+            return HttpRouter.retryLater(Response.Status.TOO_MANY_REQUESTS, "Too many requests", retryAfter);
+        }
+
+        List<Future<Object>> futures = new ArrayList<>(batch.size());
+        for (BatchOperation operation : batch) {
+            futures.add(mCommandExecutor.submit(operation.lane, operation.op, operation.action));
+        }
+
+        long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT_MS + BATCH_OPERATION_TIMEOUT_MS * batch.size();
+        boolean completed = true;
+        boolean allSucceeded = true;
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < batch.size(); i++) {
+            BatchOperation operation = batch.get(i);
+            Future<Object> future = futures.get(i);
+            JSONObject result = new JSONObject();
+            result.put("index", i);
+            result.put("op", operation.op);
+            if (future == null) {
+                result.put("success", false);
+                result.put("error", "Too many pending commands");
+                allSucceeded = false;
+                results.put(result);
+                continue;
+            }
+            try {
+                Object value = CommandExecutor.await(future, Math.max(0, deadline - System.currentTimeMillis()));
+                result.put("success", true);
+                if (value != null) result.put("result", value);
+            } catch (TimeoutException e) {
+                // Still queued or running, it finishes without us
+                completed = false;
+                continue;
+            } catch (ExecutionException e) {
+                Log.e("HttpServer", "Batch operation " + operation.op + " failed", e.getCause());
+                result.put("success", false);
+                result.put("error", String.valueOf(e.getCause().getMessage()));
+                allSucceeded = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommandException(Response.Status.SERVICE_UNAVAILABLE, "Interrupted");
+            }
+            results.put(result);
+        }
+
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", completed && allSucceeded);
+        jsonResponse.put("completed", completed);
+        jsonResponse.put("results", results);
+        if (!completed) {
+            jsonResponse.put("error", "Batch still running");
+            return newFixedLengthResponse(Response.Status.ACCEPTED, "application/json", jsonResponse.toString());
+        }
+        return jsonResponse(jsonResponse);
+    }
+
+    /**
+     * Check an operation's parameters and bind them, nothing is touched until the action runs.
+     */
+    private BatchOperation prepareOperation(JSONObject json) throws JSONException {
+        String op = json.getString("op");
+        switch (op) {
+            case "relay": {
+                int num = json.getInt("num");
+                if (num < 0 || num >= DeviceHelper.getRelayCount()) throw new JSONException("Invalid relay " + num);
+                boolean state = json.getBoolean("state");
+                return new BatchOperation(op, Lane.CONTROL, () -> {
+                    mDeviceHelper.setRelay(num, state);
+                    return mDeviceHelper.getRelay(num);
+                });
+            }
             case "wake":
-                // Accept both GET and POST for convenience
-                Log.i("HttpServer", "Wake request received");
-                LocalBroadcastManager.getInstance(mApplicationContext)
-                        .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STOPPED));
-                jsonResponse.put("success", true);
-                break;
+                return new BatchOperation(op, Lane.CONTROL, () -> LocalBroadcastManager.getInstance(mApplicationContext)
+                        .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STOPPED)));
             case "sleep":
-                // Accept both GET and POST for convenience
-                Log.i("HttpServer", "Sleep request received");
-                LocalBroadcastManager.getInstance(mApplicationContext)
-                        .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STARTED));
-                jsonResponse.put("success", true);
-                break;
-            case "reboot":
-                jsonResponse.put("success", false);
-                if (method.equals(Method.POST)) {
-                    long deltaTime = System.currentTimeMillis() - ShellyElevateApplication.getApplicationStartTime();
-                    deltaTime /= 1000;
-                    if (deltaTime > 20) {
-                        try {
-                            Runtime.getRuntime().exec("reboot");
-                            jsonResponse.put("success", true);
-                        } catch (IOException e) {
-                            Log.e("HttpServer", "Error rebooting:", e);
-                        }
-                    } else {
-                        Toast.makeText(mApplicationContext, "Please wait %s seconds before rebooting".replace("%s", String.valueOf(20 - deltaTime)), Toast.LENGTH_LONG).show();
-                    }
-                }
-                break;
-            case "launchApp":
-                if (method.equals(Method.POST)) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String postData = files.get("postData");
-                    if (postData != null) {
-                        JSONObject jsonObject = new JSONObject(postData);
-                        String packageName = jsonObject.optString("package", "io.homeassistant.companion.android.minimal");
-                        try {
-                            Intent launchIntent = mApplicationContext.getPackageManager().getLaunchIntentForPackage(packageName);
-                            if (launchIntent != null) {
-                                launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                                launchIntent.addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
-                                mApplicationContext.startActivity(launchIntent);
-                                jsonResponse.put("success", true);
-                                jsonResponse.put("package", packageName);
-                            } else {
-                                jsonResponse.put("success", false);
-                                jsonResponse.put("error", "App not installed: " + packageName);
-                            }
-                        } catch (Exception e) {
-                            jsonResponse.put("success", false);
-                            jsonResponse.put("error", "Failed to launch: " + e.getMessage());
-                        }
+                return new BatchOperation(op, Lane.CONTROL, () -> LocalBroadcastManager.getInstance(mApplicationContext)
+                        .sendBroadcast(new Intent(INTENT_SCREEN_SAVER_STARTED)));
+            case "volume": {
+                double volume = json.getDouble("volume");
+                if (volume < 0 || volume > 1) throw new JSONException("Volume must be between 0 and 1");
+                return new BatchOperation(op, Lane.MEDIA, () -> {
+                    mMediaHelper.setVolume(volume);
+                    return mMediaHelper.getVolume();
+                });
+            }
+            case "play": {
+                String url = json.getString("url");
+                Uri mediaUri = Uri.parse(url);
+                if (url.trim().isEmpty() || mediaUri.getScheme() == null) throw new JSONException("Invalid url " + url);
+                boolean music = json.getBoolean("music");
+                double volume = json.getDouble("volume");
+                if (volume < 0 || volume > 1) throw new JSONException("Volume must be between 0 and 1");
+                return new BatchOperation(op, Lane.MEDIA, () -> {
+                    mMediaHelper.setVolume(volume);
+                    if (music) {
+                        mMediaHelper.playMusic(mediaUri);
                     } else {
-                        jsonResponse.put("success", false);
-                        jsonResponse.put("error", "Missing package parameter");
+                        mMediaHelper.playEffect(mediaUri);
                     }
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Invalid request method");
-                }
-                break;
+                    return null;
+                });
+            }
+            case "pause":
+                return new BatchOperation(op, Lane.MEDIA, () -> {
+                    mMediaHelper.pauseMusic();
+                    return null;
+                });
+            case "resume":
+                return new BatchOperation(op, Lane.MEDIA, () -> {
+                    mMediaHelper.resumeMusic();
+                    return null;
+                });
+            case "stop":
+                return new BatchOperation(op, Lane.MEDIA, () -> {
+                    mMediaHelper.stopAll();
+                    return null;
+                });
+            case "launchApp": {
+                String packageName = json.optString("package", "io.homeassistant.companion.android.minimal");
+                Intent launchIntent = mApplicationContext.getPackageManager().getLaunchIntentForPackage(packageName);
+                if (launchIntent == null) throw new JSONException("App not installed: " + packageName);
+                launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                launchIntent.addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+                return new BatchOperation(op, Lane.CONTROL, () -> {
+                    mApplicationContext.startActivity(launchIntent);
+                    return packageName;
+                });
+            }
             default:
-                jsonResponse.put("success", false);
-                jsonResponse.put("error", "Invalid request URI");
-                break;
+                throw new JSONException("Unknown op: " + op);
         }
-
-        return newFixedLengthResponse(jsonResponse.getBoolean("success") ? Response.Status.OK : Response.Status.INTERNAL_ERROR, "application/json", jsonResponse.toString());
     }
 
     private static int GetNumParameter(Map<String, String> params, int defaultValue) {
@@ -390,8 +967,15 @@ public class HttpServer extends NanoHTTPD {
         return defaultValue; // Default
     }
 
+    public BoundedAsyncRunner getAsyncRunner() {
+        return mAsyncRunner;
+    }
+
     public void onDestroy() {
+        mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mSettingsCacheInvalidator);
+        mEventStream.closeAll();
         closeAllConnections();
         stop();
+        mAsyncRunner.shutdown();
     }
 }
@@ -0,0 +1,142 @@
+package com.stretter.shellyelevateservice;
+
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_MAX_CONCURRENT_WRITES;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_RATE_READ;
+import static com.stretter.shellyelevateservice.Constants.SP_HTTP_RATE_WRITE;
+
+import android.content.SharedPreferences;
+
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control for {@link HttpServer}: a token bucket per client IP and route class, and a
+ * server-wide cap on write routes running at the same time.
+ *
+ * Write routes (relays, screen, media, reboot, ...) touch hardware and publish MQTT, so they get
+ * a much smaller budget than reads. The concurrency cap keeps a burst of writes from taking every
+ * worker, reads keep being served while writes wait their turn.
+ */
+public class RateLimiter {
+
+    public enum RouteClass {
+        READ,
+        WRITE
+    }
+
+    // Buckets idle for this long are full again and can be forgotten
+    private static final long IDLE_BUCKET_NANOS = 60_000_000_000L;
+    private static final int PRUNE_THRESHOLD = 256;
+
+    private static final class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Counter limited = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter writesRejected = new MetricsRegistry.Counter();
+    private volatile double readRate;
+    private volatile double writeRate;
+    private volatile Semaphore writeSlots;
+    private volatile int maxConcurrentWrites;
+
+    public RateLimiter(SharedPreferences preferences) {
+        load(preferences);
+    }
+
+    /**
+     * Read the limits, rates are requests per second per client with a burst of twice that.
+     * 0 turns a limit off.
+     */
+    public void load(SharedPreferences preferences) {
+        readRate = Math.max(0, preferences.getInt(SP_HTTP_RATE_READ, 20));
+        writeRate = Math.max(0, preferences.getInt(SP_HTTP_RATE_WRITE, 5));
+        int maxWrites = Math.max(0, preferences.getInt(SP_HTTP_MAX_CONCURRENT_WRITES, 2));
+        if (maxWrites != maxConcurrentWrites || writeSlots == null) {
+            // Writes running on the old semaphore release into it, nothing is lost
+            writeSlots = new Semaphore(maxWrites);
+            maxConcurrentWrites = maxWrites;
+        }
+        buckets.clear();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("http_rate_limited_total", limited::get);
+        registry.gauge("http_writes_rejected_total", writesRejected::get);
+        registry.gauge("http_writes_active", () -> maxConcurrentWrites - writeSlots.availablePermits());
+    }
+
+    /**
+     * Take a token for a request.
+     *
+     * @return 0 if the request may proceed, otherwise the seconds until the client has a token again
+     */
+    public int acquire(String client, RouteClass routeClass) {
+        return acquire(client, routeClass, 1);
+    }
+
+    /**
+     * Take tokens for a request that does the work of several, e.g. a batch of writes. A cost over
+     * the burst needs a full bucket and leaves it in debt, so the client waits the whole cost off
+     * before its next request.
+     *
+     * @return 0 if the request may proceed, otherwise the seconds until the client can pay
+     */
+    public int acquire(String client, RouteClass routeClass, int cost) {
+        double rate = routeClass == RouteClass.WRITE ? writeRate : readRate;
+        if (rate <= 0 || cost <= 0) return 0;
+
+        long now = System.nanoTime();
+        if (buckets.size() > PRUNE_THRESHOLD) prune(now);
+
+        double burst = rate * 2;
+        Bucket bucket = buckets.computeIfAbsent(client + '|' + routeClass, key -> new Bucket(burst, now));
+        synchronized (bucket) {
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) / 1e9 * rate);
+            bucket.refilledAt = now;
+            double needed = Math.min(cost, burst);
+            if (bucket.tokens >= needed) {
+                bucket.tokens -= cost;
+                return 0;
+            }
+            limited.inc();
+            return (int) Math.ceil((needed - bucket.tokens) / rate);
+        }
+    }
+
+    /**
+     * Claim one of the concurrent write slots, without waiting.
+     *
+     * @return the slot to release when the write is done, or null if all are taken
+     */
+    public Semaphore tryAcquireWrite() {
+        if (maxConcurrentWrites == 0) return null;
+        Semaphore slots = writeSlots;
+        if (slots.tryAcquire()) return slots;
+        writesRejected.inc();
+        return null;
+    }
+
+    public boolean limitsWrites() {
+        return maxConcurrentWrites > 0;
+    }
+
+    private void prune(long now) {
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            Bucket bucket = it.next();
+            synchronized (bucket) {
+                if (now - bucket.refilledAt > IDLE_BUCKET_NANOS) it.remove();
+            }
+        }
+    }
+}
@@ -3,17 +3,34 @@ package com.stretter.shellyelevateservice;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mSharedPreferences;
 
 import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.stretter.shellyelevateservice.mqtt.ReportingPolicy;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class SettingsParser {
+
+    private static final String TAG = "SettingsParser";
+    // Fractional settings, stored as float whether the JSON says 1 or 0.5
+    private static final Set<String> FLOAT_KEYS = new HashSet<>();
+
+    static {
+        for (ReportingPolicy.Sensor sensor : ReportingPolicy.Sensor.values()) {
+            FLOAT_KEYS.add(sensor.deltaKey());
+            FLOAT_KEYS.add(sensor.deltaPctKey());
+        }
+    }
+
     public JSONObject getSettings() throws JSONException {
         JSONObject settings = new JSONObject();
         Map<String, ?> allPreferences = mSharedPreferences.getAll();
@@ -28,11 +45,36 @@ public class SettingsParser {
         return settings;
     }
 
-    public void setSettings(JSONObject settings) throws JSONException {
+    /**
+     * Store the posted settings. Nothing is stored if any value doesn't fit its key's type.
+     *
+     * @return the rejected keys, empty if everything was stored
+     */
+    public List<String> setSettings(JSONObject settings) throws JSONException {
         SharedPreferences.Editor editor = mSharedPreferences.edit();
+        Map<String, ?> current = mSharedPreferences.getAll();
+        List<String> rejected = new ArrayList<>();
         for (Iterator<String> it = settings.keys(); it.hasNext(); ) {
             String key = it.next();
-            Class<?> type = settings.get(key).getClass();
+            Object value = settings.get(key);
+            if (FLOAT_KEYS.contains(key)) {
+                if (value instanceof Number) {
+                    editor.putFloat(key, ((Number) value).floatValue());
+                } else {
+                    rejected.add(key);
+                }
+                continue;
+            }
+            Object existing = current.get(key);
+            if (existing != null && !existing.getClass().equals(value.getClass())) {
+                // Keep the stored type, the typed getters throw on anything else
+                if (!putConverted(editor, key, value, existing)) {
+                    rejected.add(key);
+                }
+                continue;
+            }
+
+            Class<?> type = value.getClass();
             if (type.equals(String.class)) {
                 editor.putString(key, settings.getString(key));
             } else if (type.equals(Integer.class)) {
@@ -41,8 +83,43 @@ public class SettingsParser {
                 editor.putLong(key, settings.getLong(key));
             } else if (type.equals(Boolean.class)) {
                 editor.putBoolean(key, settings.getBoolean(key));
+            } else if (type.equals(Double.class) || type.equals(Float.class)) {
+                editor.putFloat(key, (float) settings.getDouble(key));
+            } else {
+                rejected.add(key);
             }
         }
+        if (!rejected.isEmpty()) {
+            Log.w(TAG, "Rejected settings " + rejected + ", nothing stored");
+            return rejected;
+        }
         editor.apply();
+        return rejected;
+    }
+
+    /**
+     * Store a number as the type the key already has. A fraction is not silently cut off for
+     * integer keys.
+     *
+     * @return false if the value can't be stored as that type
+     */
+    private static boolean putConverted(SharedPreferences.Editor editor, String key, Object value, Object existing) {
+        if (!(value instanceof Number)) return false;
+        Number number = (Number) value;
+        if (existing instanceof Float) {
+            editor.putFloat(key, number.floatValue());
+            return true;
+        }
+        double d = number.doubleValue();
+        if (d != Math.rint(d)) return false;
+        if (existing instanceof Integer && d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE) {
+            editor.putInt(key, number.intValue());
+            return true;
+        }
+        if (existing instanceof Long) {
+            editor.putLong(key, number.longValue());
+            return true;
+        }
+        return false;
     }
 }
@@ -7,9 +7,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.stretter.shellyelevateservice.helper.CommandExecutor;
 import com.stretter.shellyelevateservice.helper.DeviceHelper;
 import com.stretter.shellyelevateservice.helper.DeviceSensorManager;
+import com.stretter.shellyelevateservice.helper.EventStream;
 import com.stretter.shellyelevateservice.helper.MediaHelper;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
 import com.stretter.shellyelevateservice.mqtt.MQTTServer;
 
 /**
@@ -20,6 +23,9 @@ public class ShellyElevateApplication extends Application {
 
     // Components (initialized by ShellyElevateService)
     public static HttpServer mHttpServer;
+    public static CommandExecutor mCommandExecutor;
+    public static MetricsRegistry mMetricsRegistry;
+    public static EventStream mEventStream;
     public static DeviceHelper mDeviceHelper;
     public static DeviceSensorManager mDeviceSensorManager;
     public static MQTTServer mMQTTServer;
@@ -25,10 +25,13 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import fi.iki.elonen.NanoHTTPD;
+import com.stretter.shellyelevateservice.helper.CommandExecutor;
 import com.stretter.shellyelevateservice.helper.DeviceHelper;
 import com.stretter.shellyelevateservice.helper.DeviceSensorManager;
+import com.stretter.shellyelevateservice.helper.EventStream;
 import com.stretter.shellyelevateservice.helper.MediaHelper;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+import com.stretter.shellyelevateservice.helper.RuntimeMetrics;
 import com.stretter.shellyelevateservice.mqtt.MQTTServer;
 
 import static com.stretter.shellyelevateservice.Constants.*;
@@ -57,6 +60,9 @@ public class ShellyElevateService extends Service {
     private MQTTServer mqttServer;
     private HttpServer httpServer;
     private MediaHelper mediaHelper;
+    private CommandExecutor commandExecutor;
+    private EventStream eventStream;
+    private MetricsRegistry metricsRegistry;
     private InputEventReader inputEventReader;
     private ButtonStateTracker buttonStateTracker;
 
@@ -148,6 +154,13 @@ public class ShellyElevateService extends Service {
         if (!sharedPreferences.contains(SP_MQTT_PORT)) editor.putInt(SP_MQTT_PORT, 1883);
         if (!sharedPreferences.contains(SP_MQTT_USERNAME)) editor.putString(SP_MQTT_USERNAME, "");
         if (!sharedPreferences.contains(SP_MQTT_PASSWORD)) editor.putString(SP_MQTT_PASSWORD, "");
+        if (!sharedPreferences.contains(SP_MQTT_OFFLINE_BUFFER_KB)) editor.putInt(SP_MQTT_OFFLINE_BUFFER_KB, 256);
+        if (!sharedPreferences.contains(SP_MQTT_PERSISTENT_SESSION)) editor.putBoolean(SP_MQTT_PERSISTENT_SESSION, false);
+        if (!sharedPreferences.contains(SP_MQTT_SESSION_EXPIRY_SEC)) editor.putInt(SP_MQTT_SESSION_EXPIRY_SEC, 300);
+        if (!sharedPreferences.contains(SP_MQTT_SENSOR_EXPIRY_SEC)) editor.putInt(SP_MQTT_SENSOR_EXPIRY_SEC, 60);
+        if (!sharedPreferences.contains(SP_MQTT_CONSOLIDATED_STATE)) editor.putBoolean(SP_MQTT_CONSOLIDATED_STATE, false);
+        if (!sharedPreferences.contains(SP_MQTT_DIAGNOSTICS)) editor.putBoolean(SP_MQTT_DIAGNOSTICS, false);
+        if (!sharedPreferences.contains(SP_MQTT_BIRTH_JITTER_MS)) editor.putInt(SP_MQTT_BIRTH_JITTER_MS, 10000);
 
         // Screen
         if (!sharedPreferences.contains(SP_AUTOMATIC_BRIGHTNESS)) editor.putBoolean(SP_AUTOMATIC_BRIGHTNESS, true);
@@ -167,6 +180,15 @@ public class ShellyElevateService extends Service {
 
         // Other
         if (!sharedPreferences.contains(SP_HTTP_SERVER_ENABLED)) editor.putBoolean(SP_HTTP_SERVER_ENABLED, true);
+        if (!sharedPreferences.contains(SP_HTTP_WORKER_THREADS)) editor.putInt(SP_HTTP_WORKER_THREADS, 4);
+        if (!sharedPreferences.contains(SP_HTTP_ACCEPT_QUEUE)) editor.putInt(SP_HTTP_ACCEPT_QUEUE, 16);
+        if (!sharedPreferences.contains(SP_HTTP_KEEP_ALIVE_MS)) editor.putInt(SP_HTTP_KEEP_ALIVE_MS, 5000);
+        if (!sharedPreferences.contains(SP_HTTP_EVENT_CLIENTS)) editor.putInt(SP_HTTP_EVENT_CLIENTS, 2);
+        if (!sharedPreferences.contains(SP_HTTP_STATE_WAITERS)) editor.putInt(SP_HTTP_STATE_WAITERS, 1);
+        if (!sharedPreferences.contains(SP_HTTP_MAX_BODY_KB)) editor.putInt(SP_HTTP_MAX_BODY_KB, 64);
+        if (!sharedPreferences.contains(SP_HTTP_RATE_READ)) editor.putInt(SP_HTTP_RATE_READ, 20);
+        if (!sharedPreferences.contains(SP_HTTP_RATE_WRITE)) editor.putInt(SP_HTTP_RATE_WRITE, 5);
+        if (!sharedPreferences.contains(SP_HTTP_MAX_CONCURRENT_WRITES)) editor.putInt(SP_HTTP_MAX_CONCURRENT_WRITES, 2);
         if (!sharedPreferences.contains(SP_MEDIA_ENABLED)) editor.putBoolean(SP_MEDIA_ENABLED, true);
         if (!sharedPreferences.contains(SP_DEBUG_KEYS)) editor.putBoolean(SP_DEBUG_KEYS, false);
 
@@ -175,8 +197,30 @@ public class ShellyElevateService extends Service {
     }
 
     private void initializeComponents() {
+        // Metrics first, every other component records into it
+        metricsRegistry = new MetricsRegistry();
+        ShellyElevateApplication.mMetricsRegistry = metricsRegistry;
+        RuntimeMetrics.register(metricsRegistry, scheduler, mainHandler);
+
+        // Runs inbound MQTT/HTTP actions off the network threads
+        commandExecutor = new CommandExecutor();
+        commandExecutor.registerMetrics(metricsRegistry);
+        ShellyElevateApplication.mCommandExecutor = commandExecutor;
+
+        // Live events for /events clients, fed by the sensor, button, relay and screen paths
+        eventStream = new EventStream();
+        eventStream.registerMetrics(metricsRegistry);
+        ShellyElevateApplication.mEventStream = eventStream;
+
         // Device helper for hardware access (relay, brightness, temp/humidity)
         deviceHelper = new DeviceHelper();
+        deviceHelper.registerMetrics(metricsRegistry);
+
+        // Relays only report on change, seed the state snapshot with where they are now
+        for (int num = 0; num < DeviceHelper.getRelayCount(); num++) {
+            eventStream.publishRelay(num, deviceHelper.getRelay(num));
+        }
+        eventStream.publishScreen(isDimmed);
 
         // Sensor manager for lux and proximity
         sensorManager = new DeviceSensorManager(this);
@@ -263,7 +307,7 @@ public class ShellyElevateService extends Service {
                 httpServer = new HttpServer();
                 ShellyElevateApplication.mHttpServer = httpServer;
             }
-            httpServer.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+            httpServer.startServer();
             Log.i(TAG, "HTTP server started on port 8080");
             httpRetryDelaySeconds = 5;
         } catch (IOException e) {
@@ -392,9 +436,10 @@ public class ShellyElevateService extends Service {
         mainHandler.post(() -> deviceHelper.setScreenBrightness(minBrightness));
 
         // Publish state via MQTT
-        if (mqttServer != null && mqttServer.shouldSend()) {
+        if (mqttServer != null && mqttServer.isEnabled()) {
             mqttServer.publishSleeping(true);
         }
+        eventStream.publishScreen(true);
 
         // Broadcast for any listeners
         LocalBroadcastManager.getInstance(this)
@@ -419,9 +464,10 @@ public class ShellyElevateService extends Service {
         mainHandler.post(() -> deviceHelper.setScreenBrightness(finalBrightness));
 
         // Publish state via MQTT
-        if (mqttServer != null && mqttServer.shouldSend()) {
+        if (mqttServer != null && mqttServer.isEnabled()) {
             mqttServer.publishSleeping(false);
         }
+        eventStream.publishScreen(false);
 
         // Broadcast for any listeners
         LocalBroadcastManager.getInstance(this)
@@ -456,9 +502,10 @@ public class ShellyElevateService extends Service {
         float maxRange = sensorManager.getMaxProximitySensorValue();
 
         // Publish to MQTT
-        if (mqttServer != null && mqttServer.shouldSend()) {
-            mqttServer.publishProximity(proximity);
+        if (mqttServer != null && mqttServer.isEnabled()) {
+            mqttServer.reportProximity(proximity);
         }
+        eventStream.publishSensor("proximity", proximity);
 
         // Wake on proximity if enabled and something is close
         if (wakeOnProximity && isDimmed && proximity < maxRange - 0.5f) {
@@ -530,9 +577,12 @@ public class ShellyElevateService extends Service {
      */
     private void onButtonAction(int buttonNumber, ButtonStateTracker.EventType eventType) {
         Log.i(TAG, "Button " + buttonNumber + " action: " + eventType.getValue());
-        if (mqttServer != null && mqttServer.shouldSend()) {
+        if (mqttServer != null && mqttServer.isEnabled()) {
             mqttServer.publishButtonEvent(buttonNumber, eventType.getValue());
         }
+        eventStream.publishButton(buttonNumber, eventType.getValue());
+        metricsRegistry.counter("button_events_total",
+                "button", String.valueOf(buttonNumber), "gesture", eventType.getValue()).inc();
     }
 
     public void onTouchEvent() {
@@ -591,6 +641,9 @@ public class ShellyElevateService extends Service {
         if (mediaHelper != null) {
             mediaHelper.onDestroy();
         }
+        if (commandExecutor != null) {
+            commandExecutor.shutdown();
+        }
 
         Log.i(TAG, "ShellyElevateService stopped");
         super.onDestroy();
@@ -0,0 +1,245 @@
+package com.stretter.shellyelevateservice.helper;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs inbound MQTT and HTTP actions on a single worker thread so network threads only
+ * enqueue and return.
+ *
+ * Commands are queued per lane and the worker always drains the highest priority lane first:
+ * relay and screen wake/sleep before media, media before diagnostics. Every lane is bounded,
+ * when it is full the command is rejected instead of piling up behind a stuck sysfs write.
+ */
+public class CommandExecutor {
+
+    private static final String TAG = "CommandExecutor";
+
+    // Log commands that hold up the lanes behind them
+    private static final long SLOW_COMMAND_MS = 500;
+
+    public enum Lane {
+        CONTROL(64),
+        MEDIA(32),
+        DIAGNOSTICS(16);
+
+        final int capacity;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class Command<T> extends FutureTask<T> {
+        final Lane lane;
+        final String name;
+        final long enqueuedAtNanos = System.nanoTime();
+
+        Command(Lane lane, String name, Callable<T> callable) {
+            super(callable);
+            this.lane = lane;
+            this.name = name;
+        }
+    }
+
+    private static final class Stats {
+        long count;
+        long failed;
+        long lastLatencyNanos;
+        long maxLatencyNanos;
+        long totalLatencyNanos;
+        long totalRunNanos;
+    }
+
+    private final Map<Lane, ArrayDeque<Command<?>>> queues = new EnumMap<>(Lane.class);
+    private final Map<Lane, Long> rejected = new EnumMap<>(Lane.class);
+    private final Map<String, Stats> stats = new HashMap<>();
+    private final MetricsRegistry.Histogram latencyHistogram = new MetricsRegistry.Histogram();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public CommandExecutor() {
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>(lane.capacity));
+            rejected.put(lane, 0L);
+        }
+        worker = new Thread(this::runLoop, "command-executor");
+        worker.start();
+    }
+
+    /**
+     * Queue a command.
+     *
+     * @return the pending result, or null if the lane is full
+     */
+    public <T> Future<T> submit(Lane lane, String name, Callable<T> task) {
+        Command<T> command = new Command<>(lane, name, task);
+        synchronized (this) {
+            ArrayDeque<Command<?>> queue = queues.get(lane);
+            if (!running || queue.size() >= lane.capacity) {
+                rejected.put(lane, rejected.get(lane) + 1);
+                Log.w(TAG, "Rejecting " + name + ", " + lane + " lane is full");
+                return null;
+            }
+            queue.addLast(command);
+            notifyAll();
+        }
+        return command;
+    }
+
+    /**
+     * Queue a fire-and-forget command.
+     *
+     * @return false if the lane is full
+     */
+    public boolean execute(Lane lane, String name, Runnable task) {
+        return submit(lane, name, () -> {
+            task.run();
+            return null;
+        }) != null;
+    }
+
+    /**
+     * Wait for a submitted command, for callers that have to answer with its result.
+     */
+    public static <T> T await(Future<T> future, long timeoutMs) throws ExecutionException, TimeoutException, InterruptedException {
+        return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void runLoop() {
+        while (running) {
+            Command<?> command;
+            synchronized (this) {
+                command = nextCommand();
+                if (command == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            run(command);
+        }
+    }
+
+    private Command<?> nextCommand() {
+        for (Lane lane : Lane.values()) {
+            Command<?> command = queues.get(lane).pollFirst();
+            if (command != null) return command;
+        }
+        return null;
+    }
+
+    private void run(Command<?> command) {
+        long start = System.nanoTime();
+        command.run();
+        long end = System.nanoTime();
+
+        boolean failed = false;
+        try {
+            command.get();
+        } catch (ExecutionException e) {
+            failed = true;
+            Log.e(TAG, "Command " + command.name + " failed", e.getCause());
+        } catch (Exception ignored) {
+            // Cancelled by the caller
+        }
+
+        long runMs = (end - start) / 1_000_000;
+        if (runMs > SLOW_COMMAND_MS) {
+            Log.w(TAG, "Command " + command.name + " took " + runMs + "ms");
+        }
+
+        synchronized (this) {
+            Stats s = stats.get(command.name);
+            if (s == null) {
+                s = new Stats();
+                stats.put(command.name, s);
+            }
+            long latency = end - command.enqueuedAtNanos;
+            latencyHistogram.record(latency / 1e6);
+            s.count++;
+            if (failed) s.failed++;
+            s.lastLatencyNanos = latency;
+            s.maxLatencyNanos = Math.max(s.maxLatencyNanos, latency);
+            s.totalLatencyNanos += latency;
+            s.totalRunNanos += end - start;
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.register("command_latency_ms", latencyHistogram);
+        for (Lane lane : Lane.values()) {
+            String name = lane.name().toLowerCase();
+            registry.gauge("command_queue_depth", () -> getQueueDepth(lane), "lane", name);
+            registry.gauge("command_rejected_total", () -> getRejectedCount(lane), "lane", name);
+        }
+    }
+
+    public synchronized int getQueueDepth(Lane lane) {
+        return queues.get(lane).size();
+    }
+
+    public synchronized long getRejectedCount(Lane lane) {
+        return rejected.get(lane);
+    }
+
+    /**
+     * Queue depth and rejections per lane, and latency (queued to done) per command name.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject lanes = new JSONObject();
+        for (Lane lane : Lane.values()) {
+            JSONObject json = new JSONObject();
+            json.put("depth", queues.get(lane).size());
+            json.put("capacity", lane.capacity);
+            json.put("rejected", rejected.get(lane));
+            lanes.put(lane.name().toLowerCase(), json);
+        }
+
+        JSONObject commands = new JSONObject();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("count", s.count);
+            json.put("failed", s.failed);
+            json.put("lastLatencyMs", s.lastLatencyNanos / 1e6);
+            json.put("maxLatencyMs", s.maxLatencyNanos / 1e6);
+            json.put("avgLatencyMs", s.totalLatencyNanos / 1e6 / s.count);
+            json.put("avgRunMs", s.totalRunNanos / 1e6 / s.count);
+            commands.put(entry.getKey(), json);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("lanes", lanes);
+        json.put("commands", commands);
+        return json;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            for (ArrayDeque<Command<?>> queue : queues.values()) {
+                for (Command<?> command : queue) command.cancel(false);
+                queue.clear();
+            }
+            notifyAll();
+        }
+        worker.interrupt();
+    }
+}
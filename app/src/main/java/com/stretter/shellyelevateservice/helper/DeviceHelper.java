@@ -1,6 +1,7 @@
 package com.stretter.shellyelevateservice.helper;
 
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mApplicationContext;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mEventStream;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMQTTServer;
 
 import android.provider.Settings;
@@ -40,6 +41,9 @@ public class DeviceHelper {
 
     private static final String TAG = "DeviceHelper";
 
+    private static final MetricsRegistry.Histogram sysfsReadLatency = new MetricsRegistry.Histogram();
+    private static final MetricsRegistry.Histogram sysfsWriteLatency = new MetricsRegistry.Histogram();
+
     public DeviceHelper() {
         for (String brightnessFile : screenBrightnessFiles) {
             File f = new File(brightnessFile);
@@ -107,6 +111,10 @@ public class DeviceHelper {
         return Integer.parseInt(sanitizeString(readFileContent(screenBrightnessFile)));
     }
 
+    public static int getRelayCount() {
+        return possibleRelayFiles.length;
+    }
+
     public boolean getRelay(int num) {
         boolean relayState = false;
 
@@ -129,9 +137,10 @@ public class DeviceHelper {
             writeFileContent(relayFile, state ? "1" : "0");
         }
 
-        if (mMQTTServer.shouldSend()) {
+        if (mMQTTServer.isEnabled()) {
             mMQTTServer.publishRelay(num, state);
         }
+        mEventStream.publishRelay(num, state);
     }
 
     public double getTemperature() {
@@ -177,10 +186,16 @@ public class DeviceHelper {
         }
     }
 
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.register("sysfs_read_ms", sysfsReadLatency);
+        registry.register("sysfs_write_ms", sysfsWriteLatency);
+    }
+
     private static String readFileContent(String filePath) {
        if (!fileExists(filePath))
             return null;
 
+        long start = System.nanoTime();
         StringBuilder content = new StringBuilder();
         try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
             String line;
@@ -190,6 +205,7 @@ public class DeviceHelper {
         } catch (IOException e) {
             Log.e(TAG, "Error when reading file with path:" + filePath + ":" + Objects.requireNonNull(e.getMessage()));
         }
+        sysfsReadLatency.record((System.nanoTime() - start) / 1e6);
         return content.toString();
     }
 
@@ -200,11 +216,13 @@ public class DeviceHelper {
 
     private static void writeFileContent(String filePath, String content) {
         Log.d(TAG, "Writing '" + content + "' to " + filePath);
+        long start = System.nanoTime();
         try (FileWriter writer = new FileWriter(filePath)) {
             writer.write(content);
             Log.d(TAG, "Write successful to " + filePath);
         } catch (IOException e) {
             Log.e(TAG, "FAILED to write to " + filePath + ": " + e.getMessage());
         }
+        sysfsWriteLatency.record((System.nanoTime() - start) / 1e6);
     }
 }
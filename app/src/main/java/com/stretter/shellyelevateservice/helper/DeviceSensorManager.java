@@ -7,6 +7,7 @@ import static com.stretter.shellyelevateservice.Constants.INTENT_PROXIMITY_UPDAT
 import static com.stretter.shellyelevateservice.Constants.SP_AUTOMATIC_BRIGHTNESS;
 import static com.stretter.shellyelevateservice.Constants.SP_MIN_BRIGHTNESS;
 import static com.stretter.shellyelevateservice.Constants.SP_WAKE_ON_PROXIMITY;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mEventStream;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMQTTServer;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mSharedPreferences;
 
@@ -32,7 +33,6 @@ import com.stretter.shellyelevateservice.ShellyElevateApplication;
 public class DeviceSensorManager implements SensorEventListener {
     private static final String TAG = "DeviceSensorManager";
     private float lastMeasuredLux = 0.0f;
-    private float lastPublishedLux = -1f; // initialize to invalid value
 
     private final Context context;
 
@@ -83,23 +83,12 @@ public class DeviceSensorManager implements SensorEventListener {
         switch (event.sensor.getType()) {
             case Sensor.TYPE_LIGHT:
                 lastMeasuredLux = event.values[0];
-                boolean shouldPublish = false;
-
-                if (lastPublishedLux < 0) {
-                    // First reading
-                    shouldPublish = true;
-                } else {
-                    float diff = Math.abs(lastMeasuredLux - lastPublishedLux);
-                    float change = diff / lastPublishedLux;
-                    if (change >= 0.04f) { // 4% threshold - TODO: make it configurable
-                        shouldPublish = true;
-                    }
-                }
 
-                if (shouldPublish && mMQTTServer.shouldSend()) {
-                    mMQTTServer.publishLux(lastMeasuredLux);
-                    lastPublishedLux = lastMeasuredLux;
+                // Deadband and rate limit are configured in the MQTT reporting policy
+                if (mMQTTServer.isEnabled()) {
+                    mMQTTServer.reportLux(lastMeasuredLux);
                 }
+                mEventStream.publishSensor("lux", lastMeasuredLux);
 
                 // Always broadcast locally for UI updates, even if not published
                 intent = new Intent(INTENT_LIGHT_UPDATED);
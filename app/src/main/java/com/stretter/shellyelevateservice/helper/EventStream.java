@@ -0,0 +1,344 @@
+package com.stretter.shellyelevateservice.helper;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fan-out of live device events (sensors, buttons, relays, screen) to Server-Sent Events clients,
+ * and the in-memory device state snapshot they add up to.
+ *
+ * Every event is serialized once into an SSE frame and offered to each subscriber's bounded
+ * buffer. A subscriber that can't keep up loses its oldest frames, never blocks the publisher.
+ * The latest state-like events (sensor, relay, screen) are kept and replayed to new subscribers
+ * so they start from the current state instead of waiting for the next change.
+ *
+ * Sensor samples arrive every few seconds whether anyone listens or not. Once a sensor has been
+ * seen, publishing it reuses that sensor's buffers and only builds a frame when a client is
+ * connected to receive it.
+ *
+ * Each actual state change also bumps a version number, so pollers can wait for the next
+ * change with {@link #awaitChange} instead of asking again and again.
+ */
+public class EventStream {
+
+    private static final String TAG = "EventStream";
+
+    // Frames buffered per client before the oldest ones are dropped
+    private static final int CLIENT_BUFFER = 64;
+
+    // Comment line sent when idle so dead connections are noticed by the write failing
+    private static final long KEEP_ALIVE_MS = 15000;
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // Latest event per state key, in first-seen order
+    private static final class State {
+        final String event;
+        byte[] data = new byte[32];
+        int length = -1;
+        long id;
+
+        State(String event) {
+            this.event = event;
+        }
+
+        boolean holds(JsonWriter json) {
+            if (length != json.size()) return false;
+            byte[] current = json.buffer();
+            for (int i = 0; i < length; i++) {
+                if (data[i] != current[i]) return false;
+            }
+            return true;
+        }
+
+        void set(JsonWriter json) {
+            if (data.length < json.size()) data = new byte[json.size()];
+            System.arraycopy(json.buffer(), 0, data, 0, json.size());
+            length = json.size();
+        }
+    }
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final Map<String, State> states = new LinkedHashMap<>();
+    // "sensor:temp" etc., so publishing a sample doesn't build the key every time
+    private final Map<String, String> sensorKeys = new HashMap<>();
+    // Event payload being published, only used while holding the lock
+    private final JsonWriter data = new JsonWriter();
+    // One-element holders, updated in place
+    private final Map<String, double[]> sensors = new TreeMap<>();
+    private final Map<Integer, Boolean> relays = new TreeMap<>();
+    private Boolean sleeping;
+    // Starts at the boot time so versions keep growing across restarts of the service
+    private long stateVersion = System.currentTimeMillis();
+    private int waiters;
+    private final MetricsRegistry.Counter published = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter dropped = new MetricsRegistry.Counter();
+    private long nextId;
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("sse_clients", this::getSubscriberCount);
+        registry.gauge("sse_events_total", published::get);
+        registry.gauge("sse_dropped_total", dropped::get);
+
+        // Device state from the snapshot, so scraping never touches sysfs
+        registry.gauge("sensor_temp_celsius", () -> getSensor("temp"));
+        registry.gauge("sensor_hum_percent", () -> getSensor("hum"));
+        registry.gauge("sensor_lux", () -> getSensor("lux"));
+        registry.gauge("sensor_proximity", () -> getSensor("proximity"));
+        for (int num = 0; num < DeviceHelper.getRelayCount(); num++) {
+            int relay = num;
+            registry.gauge("relay_state", () -> getRelay(relay), "relay", String.valueOf(relay));
+        }
+        registry.gauge("screen_sleeping", this::getSleeping);
+    }
+
+    private synchronized double getSensor(String sensor) {
+        double[] value = sensors.get(sensor);
+        return value != null ? value[0] : Double.NaN;
+    }
+
+    private synchronized double getRelay(int num) {
+        Boolean state = relays.get(num);
+        return state == null ? Double.NaN : state ? 1 : 0;
+    }
+
+    private synchronized double getSleeping() {
+        return sleeping == null ? Double.NaN : sleeping ? 1 : 0;
+    }
+
+    public synchronized void publishSensor(String sensor, double value) {
+        double[] holder = sensors.get(sensor);
+        if (holder == null) {
+            holder = new double[1];
+            sensors.put(sensor, holder);
+            sensorKeys.put(sensor, "sensor:" + sensor);
+        }
+        holder[0] = value;
+        data.reset().beginObject().name("sensor").value(sensor).name("value").value(value).endObject();
+        publish("sensor", sensorKeys.get(sensor), true);
+    }
+
+    public synchronized void publishRelay(int num, boolean state) {
+        relays.put(num, state);
+        data.reset().beginObject().name("relay").value(num).name("state").value(state).endObject();
+        publish("relay", "relay:" + num, false);
+    }
+
+    public synchronized void publishScreen(boolean sleeping) {
+        this.sleeping = sleeping;
+        data.reset().beginObject().name("sleeping").value(sleeping).endObject();
+        publish("screen", "screen", false);
+    }
+
+    public synchronized void publishButton(int button, String eventType) {
+        data.reset().beginObject().name("button").value(button).name("event").value(eventType).endObject();
+        publish("button", null, false);
+    }
+
+    /**
+     * Send the event currently in {@link #data}.
+     *
+     * @param stateKey key of the state this event describes, replayed to new subscribers, or
+     *                 null for one-off events
+     * @param skipUnchanged don't send anything if the state is the same as last time, for
+     *                      sensors that re-report the same reading
+     */
+    private void publish(String event, String stateKey, boolean skipUnchanged) {
+        State state = null;
+        if (stateKey != null) {
+            state = states.get(stateKey);
+            if (state == null) {
+                state = new State(event);
+                states.put(stateKey, state);
+            }
+            if (!state.holds(data)) {
+                state.set(data);
+                stateVersion++;
+                notifyAll();
+            } else if (skipUnchanged) {
+                return;
+            }
+        }
+
+        long id = ++nextId;
+        if (state != null) state.id = id;
+        published.inc();
+        if (subscribers.isEmpty()) return;
+
+        byte[] frame = frame(id, event, data.buffer(), data.size());
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(frame);
+        }
+    }
+
+    private static byte[] frame(long id, String event, byte[] data, int length) {
+        byte[] header = ("id: " + id + "\nevent: " + event + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[header.length + length + 2];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        System.arraycopy(data, 0, frame, header.length, length);
+        frame[frame.length - 2] = '\n';
+        frame[frame.length - 1] = '\n';
+        return frame;
+    }
+
+    /**
+     * Open a stream for a new client, starting with the current state. Closing it unsubscribes.
+     *
+     * @return the stream, or null if maxClients streams are already open
+     */
+    public synchronized Subscriber subscribe(int maxClients) {
+        if (subscribers.size() >= maxClients) return null;
+        Subscriber subscriber = new Subscriber();
+        for (State state : states.values()) {
+            subscriber.offer(frame(state.id, state.event, state.data, state.length));
+        }
+        subscribers.add(subscriber);
+        Log.d(TAG, "Client subscribed, " + subscribers.size() + " connected");
+        return subscriber;
+    }
+
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            Log.d(TAG, "Client unsubscribed, " + subscribers.size() + " connected");
+        }
+    }
+
+    public synchronized long getStateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * Wait until the state version is past since, or the timeout passes. Waiting holds an HTTP
+     * worker, so at most maxWaiters wait at a time. A since ahead of the current version comes
+     * from before a restart and returns at once.
+     *
+     * @return the current state version, or -1 if maxWaiters are already waiting
+     */
+    public synchronized long awaitChange(long since, long timeoutMs, int maxWaiters) {
+        if (stateVersion != since) return stateVersion;
+        if (waiters >= maxWaiters) return -1;
+
+        waiters++;
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (stateVersion <= since) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiters--;
+        }
+        return stateVersion;
+    }
+
+    /**
+     * Write the latest known readings as an object value, a reading is missing until it was
+     * first reported.
+     */
+    public synchronized void writeSnapshot(JsonWriter json) {
+        json.beginObject();
+        for (Map.Entry<String, double[]> sensor : sensors.entrySet()) {
+            json.name(sensor.getKey()).value(sensor.getValue()[0]);
+        }
+        json.name("relays").beginObject();
+        for (Map.Entry<Integer, Boolean> relay : relays.entrySet()) {
+            json.name(String.valueOf(relay.getKey())).value(relay.getValue());
+        }
+        json.endObject();
+        if (sleeping != null) json.name("sleeping").value(sleeping);
+        json.endObject();
+    }
+
+    /**
+     * End every stream, the clients see the response complete.
+     */
+    public synchronized void closeAll() {
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            subscriber.close();
+        }
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * One client's event stream. Reads block until a frame is available and return a keep-alive
+     * comment when there has been nothing to send for a while.
+     */
+    public class Subscriber extends InputStream {
+        private final ArrayDeque<byte[]> frames = new ArrayDeque<>(CLIENT_BUFFER);
+        private byte[] current;
+        private int position;
+        private boolean closed;
+
+        private synchronized void offer(byte[] frame) {
+            if (closed) return;
+            if (frames.size() >= CLIENT_BUFFER) {
+                frames.pollFirst();
+                dropped.inc();
+            }
+            frames.addLast(frame);
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (current == null || position >= current.length) {
+                long deadline = System.currentTimeMillis() + KEEP_ALIVE_MS;
+                while (!closed && frames.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        closed = true;
+                    }
+                }
+                if (closed) return -1;
+                current = frames.isEmpty() ? KEEP_ALIVE : frames.pollFirst();
+                position = 0;
+            }
+
+            int n = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                frames.clear();
+                notifyAll();
+            }
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.stretter.shellyelevateservice.helper;
+
+import com.stretter.shellyelevateservice.mqtt.PayloadEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes JSON as UTF-8 straight into a growable byte buffer, for responses and payloads built on
+ * hot paths. Unlike a {@code JSONObject} tree there are no maps, boxed numbers or intermediate
+ * strings; a writer can be reset and reused so steady state allocates nothing but the output.
+ *
+ * Commas are inserted automatically. The writer doesn't validate nesting, callers are expected
+ * to pair begin/end calls and call {@link #name} before every value inside an object.
+ *
+ * As an {@link Appendable} it takes plain UTF-8 text, so the same reusable buffer also serves
+ * text formats such as the Prometheus exposition.
+ */
+public final class JsonWriter implements Appendable {
+
+    private static final ThreadLocal<JsonWriter> THREAD_WRITER = ThreadLocal.withInitial(() -> new JsonWriter(1024));
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private byte[] buffer;
+    private int size;
+    // Per nesting level: nothing written at that level yet, so no comma before the next element
+    private boolean[] first = new boolean[8];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    public JsonWriter(int capacity) {
+        buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * This thread's writer, reset. Its content is only valid until the next call on the same
+     * thread, so use it for a result that is consumed right away (e.g. an HTTP response body)
+     * and copy with {@link #toByteArray()} anything that is kept.
+     */
+    public static JsonWriter forThread() {
+        return THREAD_WRITER.get().reset();
+    }
+
+    public JsonWriter reset() {
+        size = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        push();
+        writeByte('{');
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        push();
+        writeByte('[');
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        beforeValue();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) return nullValue();
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    /**
+     * Whole numbers are written without a fraction. NaN and infinity have no JSON form and are
+     * written as null. Values with up to six decimals, which covers sensor readings, are written
+     * without going through a String.
+     */
+    public JsonWriter value(double value) {
+        beforeValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeAscii("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+        } else if (!writeShortDecimal(value)) {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    /**
+     * A number with at most maxDecimals fraction digits, formatted like the MQTT sensor payloads.
+     */
+    public JsonWriter value(double value, int maxDecimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return value(value);
+        beforeValue();
+        ensureCapacity(PayloadEncoder.MAX_NUMBER_LENGTH);
+        size += PayloadEncoder.encodeNumber(value, maxDecimals, buffer, size);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        writeAscii("null");
+        return this;
+    }
+
+    /**
+     * A value that is already serialized JSON, e.g. from a {@code JSONObject} on a cold path.
+     */
+    public JsonWriter rawValue(String json) {
+        beforeValue();
+        writeUtf8(json);
+        return this;
+    }
+
+    /**
+     * Text outside of any JSON value, e.g. framing around a document.
+     */
+    public JsonWriter raw(String text) {
+        writeUtf8(text);
+        return this;
+    }
+
+    @Override
+    public JsonWriter append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public JsonWriter append(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) i = writeChar(text, i);
+        return this;
+    }
+
+    @Override
+    public JsonWriter append(char c) {
+        if (c < 0x80) {
+            writeByte(c);
+        } else {
+            writeChar(String.valueOf(c), 0);
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The internal buffer, valid up to {@link #size()} and only until the writer is written again.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * A stream over the internal buffer, without copying.
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the value with the fewest decimals that read back as exactly the same double, the
+     * digits Double.toString would pick in this range.
+     *
+     * @return false if more than six decimals are needed or the value is out of that range
+     */
+    private boolean writeShortDecimal(double value) {
+        double abs = Math.abs(value);
+        if (abs < 1e-3 || abs >= 1e7) return false;
+        for (int decimals = 1; decimals < POW10.length; decimals++) {
+            double scale = POW10[decimals];
+            // Division is correctly rounded, equal means the decimal string parses to value
+            if (Math.round(value * scale) / scale == value) {
+                ensureCapacity(PayloadEncoder.MAX_NUMBER_LENGTH);
+                size += PayloadEncoder.encodeNumber(value, decimals, buffer, size);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void push() {
+        depth++;
+        if (depth >= first.length) first = Arrays.copyOf(first, first.length * 2);
+        first[depth] = true;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (!first[depth]) writeByte(',');
+            first[depth] = false;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) buffer[size++] = (byte) s.charAt(i);
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // Digits came out least significant first
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte t = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = t;
+        }
+    }
+
+    private void writeString(String s) {
+        writeByte('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': writeByte('\\'); writeByte('"'); break;
+                case '\\': writeByte('\\'); writeByte('\\'); break;
+                case '\n': writeByte('\\'); writeByte('n'); break;
+                case '\r': writeByte('\\'); writeByte('r'); break;
+                case '\t': writeByte('\\'); writeByte('t'); break;
+                default:
+                    // Line and paragraph separators are valid JSON but end a line in JavaScript
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        ensureCapacity(6);
+                        buffer[size++] = '\\';
+                        buffer[size++] = 'u';
+                        buffer[size++] = HEX[c >> 12];
+                        buffer[size++] = HEX[(c >> 8) & 0xf];
+                        buffer[size++] = HEX[(c >> 4) & 0xf];
+                        buffer[size++] = HEX[c & 0xf];
+                    } else {
+                        i = writeChar(s, i);
+                    }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeUtf8(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) i = writeChar(s, i);
+    }
+
+    /**
+     * Encode the character at index as UTF-8.
+     *
+     * @return the index of the last char consumed, a surrogate pair takes two
+     */
+    private int writeChar(CharSequence s, int index) {
+        char c = s.charAt(index);
+        ensureCapacity(4);
+        if (c < 0x80) {
+            buffer[size++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[size++] = (byte) (0xc0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+            buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogate, same replacement String.getBytes would use
+            buffer[size++] = '?';
+        } else {
+            buffer[size++] = (byte) (0xe0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index;
+    }
+}
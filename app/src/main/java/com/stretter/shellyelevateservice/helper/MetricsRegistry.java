@@ -0,0 +1,290 @@
+package com.stretter.shellyelevateservice.helper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight in-process metrics: counters, gauges and windowed histograms, looked up by name.
+ *
+ * Names use snake_case with a unit suffix (e.g. {@code mqtt_publish_latency_ms}) so they can be
+ * exported as they are, see {@link #writePrometheus}. Dimensions such as the route or the button
+ * are labels on one metric, not part of its name, so they can be aggregated over. Recording is cheap enough for hot paths;
+ * percentiles are only computed when somebody reads them.
+ */
+public class MetricsRegistry {
+
+    public interface Gauge {
+        double value();
+    }
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Keeps the most recent samples in a ring buffer, percentiles describe that window.
+     */
+    public static final class Histogram {
+        private static final int DEFAULT_WINDOW = 256;
+
+        private final double[] samples;
+        private int next;
+        private int size;
+        private long count;
+        private double sum;
+
+        public Histogram() {
+            this(DEFAULT_WINDOW);
+        }
+
+        public Histogram(int window) {
+            samples = new double[window];
+        }
+
+        public synchronized void record(double value) {
+            samples[next] = value;
+            next = (next + 1) % samples.length;
+            if (size < samples.length) size++;
+            count++;
+            sum += value;
+        }
+
+        /**
+         * @param percentile 0-100
+         * @return the value at that percentile of the current window, 0 when empty
+         */
+        public double percentile(double percentile) {
+            return percentiles(percentile)[0];
+        }
+
+        /**
+         * Several percentiles from one sort of the window.
+         */
+        public double[] percentiles(double... percentiles) {
+            double[] result = new double[percentiles.length];
+            double[] window;
+            synchronized (this) {
+                if (size == 0) return result;
+                window = Arrays.copyOf(samples, size);
+            }
+            Arrays.sort(window);
+            for (int i = 0; i < percentiles.length; i++) {
+                int index = (int) Math.ceil(percentiles[i] / 100.0 * window.length) - 1;
+                result[i] = window[Math.max(0, Math.min(index, window.length - 1))];
+            }
+            return result;
+        }
+
+        public synchronized double max() {
+            double max = 0;
+            for (int i = 0; i < size; i++) max = Math.max(max, samples[i]);
+            return max;
+        }
+
+        // Lifetime totals, not limited to the window
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getSum() {
+            return sum;
+        }
+    }
+
+    private final Map<String, Map<String, Counter>> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<String, Gauge>> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<String, Histogram>> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param labels name/value pairs for one series of the metric, e.g. {@code "lane", "control"}
+     */
+    public Counter counter(String name, String... labels) {
+        return family(counters, name).computeIfAbsent(labels(labels), l -> new Counter());
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return family(histograms, name).computeIfAbsent(labels(labels), l -> new Histogram());
+    }
+
+    /**
+     * Register a histogram owned by someone else, e.g. a component that records without
+     * knowing about the registry.
+     */
+    public void register(String name, Histogram histogram, String... labels) {
+        family(histograms, name).put(labels(labels), histogram);
+    }
+
+    public void gauge(String name, Gauge gauge, String... labels) {
+        family(gauges, name).put(labels(labels), gauge);
+    }
+
+    private static <T> Map<String, T> family(Map<String, Map<String, T>> metrics, String name) {
+        return metrics.computeIfAbsent(name, n -> new ConcurrentSkipListMap<>());
+    }
+
+    // "lane", "control" -> lane="control", the form used inside the braces of the text format
+    private static String labels(String... labels) {
+        if (labels.length == 0) return "";
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Current value of an unlabeled counter or gauge, or NaN if there is none with that name.
+     */
+    public double value(String name) {
+        Map<String, Counter> counterFamily = counters.get(name);
+        Counter counter = counterFamily != null ? counterFamily.get("") : null;
+        if (counter != null) return counter.get();
+        Map<String, Gauge> gaugeFamily = gauges.get(name);
+        Gauge gauge = gaugeFamily != null ? gaugeFamily.get("") : null;
+        return gauge != null ? gauge.value() : Double.NaN;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Map<String, Counter>> family : counters.entrySet()) {
+            for (Map.Entry<String, Counter> series : family.getValue().entrySet()) {
+                json.put(seriesName(family.getKey(), series.getKey()), series.getValue().get());
+            }
+        }
+        for (Map.Entry<String, Map<String, Gauge>> family : gauges.entrySet()) {
+            for (Map.Entry<String, Gauge> series : family.getValue().entrySet()) {
+                double value = series.getValue().value();
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    json.put(seriesName(family.getKey(), series.getKey()), value);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Histogram>> family : histograms.entrySet()) {
+            for (Map.Entry<String, Histogram> series : family.getValue().entrySet()) {
+                Histogram histogram = series.getValue();
+                double[] p = histogram.percentiles(50, 99);
+                JSONObject h = new JSONObject();
+                h.put("count", histogram.getCount());
+                h.put("p50", p[0]);
+                h.put("p99", p[1]);
+                h.put("max", histogram.max());
+                json.put(seriesName(family.getKey(), series.getKey()), h);
+            }
+        }
+        return json;
+    }
+
+    private static String seriesName(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format, one TYPE line per metric and
+     * one sample per label set. Counters and gauges named {@code *_total} are typed as counters,
+     * histograms as summaries over their window with lifetime sum and count. Gauges without a
+     * value (NaN) are left out. Metrics recorded in milliseconds ({@code *_ms}, {@code *_ms_total})
+     * are exported in seconds under a {@code _seconds} name, Prometheus' base unit.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Map.Entry<String, Map<String, Counter>> family : counters.entrySet()) {
+            String name = prometheusName(family.getKey());
+            double divisor = prometheusDivisor(family.getKey());
+            writeType(out, name, "counter");
+            for (Map.Entry<String, Counter> series : family.getValue().entrySet()) {
+                appendValue(appendSeries(out, name, "", series.getKey(), null), series.getValue().get() / divisor).append('\n');
+            }
+        }
+        for (Map.Entry<String, Map<String, Gauge>> family : gauges.entrySet()) {
+            String name = prometheusName(family.getKey());
+            double divisor = prometheusDivisor(family.getKey());
+            boolean typed = false;
+            for (Map.Entry<String, Gauge> series : family.getValue().entrySet()) {
+                double value = series.getValue().value();
+                if (Double.isNaN(value)) continue;
+                if (!typed) {
+                    writeType(out, name, name.endsWith("_total") ? "counter" : "gauge");
+                    typed = true;
+                }
+                appendValue(appendSeries(out, name, "", series.getKey(), null), value / divisor).append('\n');
+            }
+        }
+        for (Map.Entry<String, Map<String, Histogram>> family : histograms.entrySet()) {
+            String name = prometheusName(family.getKey());
+            double divisor = prometheusDivisor(family.getKey());
+            writeType(out, name, "summary");
+            for (Map.Entry<String, Histogram> series : family.getValue().entrySet()) {
+                String labels = series.getKey();
+                Histogram histogram = series.getValue();
+                double[] p = histogram.percentiles(50, 90, 99);
+                appendValue(appendSeries(out, name, "", labels, "quantile=\"0.5\""), p[0] / divisor).append('\n');
+                appendValue(appendSeries(out, name, "", labels, "quantile=\"0.9\""), p[1] / divisor).append('\n');
+                appendValue(appendSeries(out, name, "", labels, "quantile=\"0.99\""), p[2] / divisor).append('\n');
+                appendValue(appendSeries(out, name, "_sum", labels, null), histogram.getSum() / divisor).append('\n');
+                appendValue(appendSeries(out, name, "_count", labels, null), histogram.getCount()).append('\n');
+            }
+        }
+    }
+
+    private static String prometheusName(String name) {
+        if (name.endsWith("_ms")) return name.substring(0, name.length() - 3) + "_seconds";
+        if (name.endsWith("_ms_total")) return name.substring(0, name.length() - 9) + "_seconds_total";
+        return name;
+    }
+
+    private static double prometheusDivisor(String name) {
+        return name.endsWith("_ms") || name.endsWith("_ms_total") ? 1000 : 1;
+    }
+
+    private static void writeType(Appendable out, String name, String type) throws IOException {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // name{labels,extra} followed by the space before the value
+    private static Appendable appendSeries(Appendable out, String name, String suffix, String labels, String extra) throws IOException {
+        out.append(name).append(suffix);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                if (!labels.isEmpty()) out.append(',');
+                out.append(extra);
+            }
+            out.append('}');
+        }
+        return out.append(' ');
+    }
+
+    private static Appendable appendValue(Appendable out, double value) throws IOException {
+        if (Double.isInfinite(value)) return out.append(value > 0 ? "+Inf" : "-Inf");
+        // Whole numbers without the ".0", counters read better that way
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return out.append(Long.toString((long) value));
+        return out.append(Double.toString(value));
+    }
+}
@@ -0,0 +1,47 @@
+package com.stretter.shellyelevateservice.helper;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process level metrics: heap, GC, threads and main looper lag.
+ *
+ * Looper lag is measured by posting a no-op to the main thread every few seconds and timing
+ * how long it waits to run, a blocked UI thread shows up here long before an ANR.
+ */
+public final class RuntimeMetrics {
+
+    private static final long LOOPER_PROBE_INTERVAL_MS = 5000;
+
+    private RuntimeMetrics() {}
+
+    public static void register(MetricsRegistry registry, ScheduledExecutorService scheduler, Handler mainHandler) {
+        Runtime runtime = Runtime.getRuntime();
+        registry.gauge("heap_used_bytes", () -> runtime.totalMemory() - runtime.freeMemory());
+        registry.gauge("heap_max_bytes", runtime::maxMemory);
+        registry.gauge("thread_count", Thread::activeCount);
+        registry.gauge("gc_count_total", () -> runtimeStat("art.gc.gc-count"));
+        registry.gauge("gc_time_ms_total", () -> runtimeStat("art.gc.gc-time"));
+
+        MetricsRegistry.Histogram looperLag = registry.histogram("main_looper_lag_ms");
+        scheduler.scheduleWithFixedDelay(() -> {
+            long posted = SystemClock.uptimeMillis();
+            mainHandler.post(() -> looperLag.record(SystemClock.uptimeMillis() - posted));
+        }, LOOPER_PROBE_INTERVAL_MS, LOOPER_PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // ART runtime statistic, NaN where the runtime doesn't report it
+    private static double runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        if (value == null) return Double.NaN;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
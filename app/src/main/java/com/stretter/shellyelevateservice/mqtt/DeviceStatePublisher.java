@@ -0,0 +1,643 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static com.stretter.shellyelevateservice.Constants.MQTT_TOPIC_STATUS;
+
+import android.util.Log;
+
+import com.stretter.shellyelevateservice.DeviceModel;
+import com.stretter.shellyelevateservice.helper.JsonWriter;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * What this device tells the broker about itself: hello, the discovery document, sensor, relay
+ * and sleeping state (per topic or as one consolidated document), button events, diagnostics,
+ * and the ordered burst that brings the broker up to date after a connect.
+ *
+ * MQTTServer owns the connection and the Android side and feeds hardware values in through
+ * {@link Readings}. Nothing in here touches Android, so the fleet simulation in the unit tests
+ * runs this same code.
+ */
+public class DeviceStatePublisher {
+
+    private static final String TAG = "MQTT";
+    // Leave room in the publish queue for live messages while replaying
+    private static final int REPLAY_HEADROOM = 16;
+
+    /**
+     * Current hardware values for the status burst.
+     */
+    public interface Readings {
+        // -999 when the sensor can't be read
+        double temperature();
+
+        double humidity();
+
+        boolean relay(int num);
+
+        float lux();
+
+        float screenBrightness();
+
+        float proximity();
+    }
+
+    /**
+     * The connection as far as publishing is concerned.
+     */
+    public interface Link {
+        boolean isEnabled();
+
+        boolean isConnected();
+    }
+
+    private final MqttTopics mTopics;
+    private final DeviceModel mDevice;
+    private final MqttPublisher mPublisher;
+    private final OfflineBuffer mOfflineBuffer;
+    private final ReportingPolicy mReportingPolicy;
+    private final StateDocument mStateDocument = new StateDocument();
+    private final ScheduledExecutorService scheduler;
+    private final Link mLink;
+    private final Readings mReadings;
+
+    // Publish all state as one JSON document on the state topic instead of one topic per value
+    private volatile boolean mConsolidatedState;
+    // Publish diagnostic entities (latency, queue, heap, ...) fed from the metrics registry
+    private volatile boolean mDiagnostics;
+    private MetricsRegistry mMetricsRegistry;
+    private LongSupplier mReconnects = () -> 0;
+    private String appName = "unknown";
+    private String appVersion = "unknown";
+
+    // Discovery document cache, rebuilt only when the inputs in discoveryKey change
+    private String discoveryKey;
+    private byte[] discoveryPayload;
+    private String discoveryHash;
+    // Hash of the config currently retained on the broker, null if unknown
+    private volatile String publishedDiscoveryHash;
+    // Republish scheduled after a Home Assistant birth message, further births join it
+    private ScheduledFuture<?> pendingRediscovery;
+
+    public DeviceStatePublisher(MqttTopics topics, DeviceModel device, MqttPublisher publisher,
+                                OfflineBuffer offlineBuffer, ReportingPolicy reportingPolicy,
+                                ScheduledExecutorService scheduler, Link link, Readings readings) {
+        mTopics = topics;
+        mDevice = device;
+        mPublisher = publisher;
+        mOfflineBuffer = offlineBuffer;
+        mReportingPolicy = reportingPolicy;
+        this.scheduler = scheduler;
+        mLink = link;
+        mReadings = readings;
+    }
+
+    public void setAppInfo(String name, String version) {
+        appName = name;
+        appVersion = version;
+    }
+
+    /**
+     * Source for the diagnostics document, without a registry no diagnostics are published.
+     */
+    public void setMetrics(MetricsRegistry registry, LongSupplier reconnects) {
+        mMetricsRegistry = registry;
+        mReconnects = reconnects;
+    }
+
+    /**
+     * @return true if the entities or topics changed, discovery and the full state need to go out again
+     */
+    public boolean configure(boolean consolidatedState, boolean diagnostics) {
+        if (consolidatedState == mConsolidatedState && diagnostics == mDiagnostics) return false;
+        mConsolidatedState = consolidatedState;
+        mDiagnostics = diagnostics;
+        mStateDocument.clear();
+        return true;
+    }
+
+    public void registerPublishPolicies(int sensorExpirySec) {
+        mPublisher.setPolicy(mTopics.status, MqttPublisher.Policy.RETAINED);
+        mPublisher.setPolicy(mTopics.config, MqttPublisher.Policy.RETAINED);
+
+        // Sensor samples expire, a reading delivered minutes late is worse than none
+        MqttPublisher.Policy sensor = MqttPublisher.Policy.STATE.withExpiry(sensorExpirySec);
+        // The frequent ones get the topic aliases, see publishStatus for how they claim them
+        MqttPublisher.Policy aliasedSensor = sensor.withTopicAlias();
+        mPublisher.setPolicy(mTopics.temp, aliasedSensor);
+        mPublisher.setPolicy(mTopics.hum, aliasedSensor);
+        mPublisher.setPolicy(mTopics.lux, aliasedSensor);
+        mPublisher.setPolicy(mTopics.proximity, aliasedSensor);
+        mPublisher.setPolicy(mTopics.brightness, sensor);
+
+        mPublisher.setPolicy(mTopics.sleeping, MqttPublisher.Policy.STATE);
+        mPublisher.setPolicy(mTopics.state, MqttPublisher.Policy.STATE.withTopicAlias());
+        mPublisher.setPolicy(mTopics.diagnostics, MqttPublisher.Policy.STATE);
+        for (int num = 0; num < mTopics.relayCount(); num++) {
+            mPublisher.setPolicy(mTopics.relayState(num), MqttPublisher.Policy.STATE);
+        }
+        // Everything else (hello, button events, unknown keys) uses the EVENT default
+    }
+
+    private boolean shouldSend() {
+        return mLink.isEnabled() && mLink.isConnected();
+    }
+
+    /**
+     * Publish discovery, the full current state, hello and online as one ordered burst.
+     * The publisher keeps queue order and its in-flight window (the broker's Receive Maximum)
+     * paces the burst, so there are no sleeps in between.
+     *
+     * Outgoing topic aliases go to the first topics sent on a connection, so the sensor values
+     * come right after discovery and ahead of hello and online, which are sent once per
+     * connection and gain nothing from an alias.
+     *
+     * @param onSynced null for a plain republish; after a connect, the offline buffer is replayed
+     *                 as well and this runs once the broker acknowledged all of it
+     */
+    public void publishStatus(Runnable onSynced) {
+        if (!mLink.isConnected()) return;
+
+        scheduler.execute(() -> {
+            try {
+                // Only sent when the broker doesn't hold it yet, Home Assistant needs the
+                // entities before their first values
+                publishConfig();
+
+                publishTemp((float) mReadings.temperature());
+                publishHum((float) mReadings.humidity());
+                publishLux(mReadings.lux());
+                if (mDevice.hasProximitySensor) {
+                    publishProximity(mReadings.proximity());
+                }
+                flushState();
+
+                publishHello();
+                publishInternal(mTopics.status, "online");
+
+                for (int num = 0; num < mDevice.inputs; num++) {
+                    publishRelay(num, mReadings.relay(num));
+                }
+                publishScreenBrightness(mReadings.screenBrightness());
+                // Sleeping state is published by ShellyElevateService when it dims/wakes
+                publishSleeping(false);
+                flushState();
+                publishDiagnostics();
+
+                if (onSynced != null) {
+                    // Buffered records go out after discovery, the current state, hello and
+                    // availability. Buffered state values are older than what the slots now
+                    // hold and get discarded by the publisher, the buffered events follow.
+                    replayOfflineBuffer();
+                    mPublisher.barrier(onSynced);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "publishStatus failed", e);
+            }
+        });
+    }
+
+    private void replayOfflineBuffer() {
+        if (mOfflineBuffer.size() == 0) return;
+
+        int replayed = mOfflineBuffer.replay(record -> {
+            if (!shouldSend() || mPublisher.getRemainingCapacity() <= REPLAY_HEADROOM) return false;
+            return mPublisher.publish(record.topic, record.payload, mPublisher.getPolicy(record.topic), record.timestamp);
+        });
+        Log.i(TAG, "Replayed " + replayed + " buffered messages, " + mOfflineBuffer.size() + " left");
+
+        if (mOfflineBuffer.size() > 0 && shouldSend()) {
+            scheduler.schedule(this::replayOfflineBuffer, 500, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue a publish using the QoS/retain policy registered for the topic.
+     * Never blocks on the network, safe to call from the main looper and input threads.
+     * While disconnected, events and state are kept in the offline buffer instead.
+     */
+    public void publishInternal(String topic, String payload) {
+        publishInternal(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void publishInternal(String topic, byte[] payload) {
+        if (!shouldSend()) {
+            MqttPublisher.Policy policy = mPublisher.getPolicy(topic);
+            if (mLink.isEnabled() && !policy.retained) {
+                mOfflineBuffer.append(topic, payload, policy.coalesce, System.currentTimeMillis());
+            } else {
+                Log.w(TAG, "publishInternal skipped — client not connected: " + topic);
+            }
+            return;
+        }
+        mPublisher.publish(topic, payload);
+    }
+
+    /**
+     * Sensor fast path: formats the number straight into the publisher's slot for the topic.
+     */
+    private void publishNumber(String topic, double value, int maxDecimals) {
+        if (!shouldSend()) {
+            publishInternal(topic, PayloadEncoder.formatNumber(value, maxDecimals));
+            return;
+        }
+        mPublisher.publishNumber(topic, value, maxDecimals);
+    }
+
+    /**
+     * A new sample, published if the reporting policy says it is worth it.
+     */
+    public void report(ReportingPolicy.Sensor sensor, double value) {
+        if (mReportingPolicy.offer(sensor, value, System.currentTimeMillis())) {
+            publishSensor(sensor, value);
+        }
+    }
+
+    /**
+     * Once a second: heartbeats for sensors past their max interval, and the state document.
+     */
+    public void tick(long nowMs) {
+        mReportingPolicy.tick(nowMs, this::publishSensor);
+        flushState();
+    }
+
+    private void publishSensor(ReportingPolicy.Sensor sensor, double value) {
+        switch (sensor) {
+            case TEMP:
+                publishTemp((float) value);
+                break;
+            case HUM:
+                publishHum((float) value);
+                break;
+            case LUX:
+                publishLux((float) value);
+                break;
+            case PROXIMITY:
+                publishProximity((float) value);
+                break;
+        }
+    }
+
+    public void publishTemp(float temp) {
+        if (temp == -999) return;
+        mReportingPolicy.markReported(ReportingPolicy.Sensor.TEMP, temp, System.currentTimeMillis());
+        publishNumberState(mTopics.temp, "temp", temp, 1);
+    }
+
+    public void publishHum(float hum) {
+        if (hum == -999) return;
+        mReportingPolicy.markReported(ReportingPolicy.Sensor.HUM, hum, System.currentTimeMillis());
+        publishNumberState(mTopics.hum, "hum", hum, 1);
+    }
+
+    public void publishLux(float lux) {
+        mReportingPolicy.markReported(ReportingPolicy.Sensor.LUX, lux, System.currentTimeMillis());
+        publishNumberState(mTopics.lux, "lux", lux, 2);
+    }
+
+    public void publishScreenBrightness(float val) {
+        publishNumberState(mTopics.brightness, "brightness", val, 1);
+    }
+
+    public void publishProximity(float distance) {
+        mReportingPolicy.markReported(ReportingPolicy.Sensor.PROXIMITY, distance, System.currentTimeMillis());
+        publishNumberState(mTopics.proximity, "proximity", distance, 2);
+    }
+
+    public void publishRelay(int num, boolean state) {
+        String topic = mTopics.relayState(num);
+        if (topic == null) return;
+        publishOnOffState(topic, "relay" + MqttTopics.relaySuffix(num), state);
+    }
+
+    public void publishSleeping(boolean state) {
+        publishOnOffState(mTopics.sleeping, "sleeping", state);
+    }
+
+    // Sensor values: in consolidated mode they go out with the next tick's state document
+    private void publishNumberState(String topic, String field, double value, int maxDecimals) {
+        if (mConsolidatedState) {
+            mStateDocument.putNumber(field, value, maxDecimals);
+            return;
+        }
+        publishNumber(topic, value, maxDecimals);
+    }
+
+    // Relay and sleeping changes are user visible, in consolidated mode they flush right away
+    private void publishOnOffState(String topic, String field, boolean state) {
+        if (mConsolidatedState) {
+            mStateDocument.putOnOff(field, state);
+            flushState();
+            return;
+        }
+        publishInternal(topic, PayloadEncoder.onOff(state));
+    }
+
+    private void flushState() {
+        if (!mConsolidatedState) return;
+        byte[] document = mStateDocument.takeIfDirty();
+        if (document != null) publishInternal(mTopics.state, document);
+    }
+
+    /**
+     * Publish a button event with specific event type (single, double, long).
+     * This is the preferred method for button events as it supports all action types.
+     */
+    public void publishButtonEvent(int buttonNumber, String eventType) {
+        String topic = mTopics.buttonEvent(buttonNumber);
+        if (topic == null) return;
+        String eventPayload = "{\"event_type\": \"" + eventType + "\"}";
+        publishInternal(topic, eventPayload);
+        Log.i(TAG, "Published button " + buttonNumber + " event: " + eventType);
+    }
+
+    public void publishUnknownKey(int keyCode, boolean pressed) {
+        String payload = "{\"key_code\": " + keyCode + ", \"pressed\": " + pressed + ", \"timestamp\": " + System.currentTimeMillis() + "}";
+        publishInternal(mTopics.unknownKey, payload);
+        Log.i(TAG, "Published unknown key: " + payload);
+    }
+
+    /**
+     * Publish the diagnostics document backing the diagnostic discovery entities.
+     * Only live values matter, nothing is buffered while offline.
+     */
+    public void publishDiagnostics() {
+        MetricsRegistry registry = mMetricsRegistry;
+        if (!mDiagnostics || registry == null || !shouldSend()) return;
+        double[] publishLatency = mPublisher.getLatencyHistogram().percentiles(50, 99);
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("publish_latency_p50").value(publishLatency[0], 1)
+                .name("publish_latency_p99").value(publishLatency[1], 1)
+                .name("queue_depth").value(mPublisher.getQueueDepth())
+                .name("dropped").value(mPublisher.getDroppedCount())
+                .name("reconnects").value(mReconnects.getAsLong())
+                .name("heap_used").value(registry.value("heap_used_bytes") / (1024 * 1024), 1)
+                .name("threads").value((long) registry.value("thread_count"))
+                .name("looper_lag").value(registry.histogram("main_looper_lag_ms").percentile(99), 1)
+                .endObject();
+        publishInternal(mTopics.diagnostics, json.toByteArray());
+    }
+
+    public void publishHello() {
+        if (!shouldSend()) return;
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("name").value(appName)
+                .name("version").value(appVersion)
+                .name("modelName").value(mDevice.name())
+                .name("proximity").value(mDevice.hasProximitySensor ? "true" : "false")
+                .endObject();
+        publishInternal(mTopics.hello, json.toByteArray());
+    }
+
+    /**
+     * Publish the retained discovery config, unless the broker already holds this exact document.
+     */
+    private void publishConfig() throws JSONException {
+        byte[] payload = getDiscoveryPayload();
+        if (discoveryHash.equals(publishedDiscoveryHash)) {
+            Log.d(TAG, "Discovery config unchanged, not republishing");
+            return;
+        }
+        if (mPublisher.publish(mTopics.config, payload)) {
+            publishedDiscoveryHash = discoveryHash;
+        }
+    }
+
+    /**
+     * Forget what the broker holds, so the next publishStatus sends discovery again.
+     * Used when Home Assistant comes back online and may have lost its entity registry state.
+     */
+    public void invalidateDiscovery() {
+        publishedDiscoveryHash = null;
+    }
+
+    /**
+     * Home Assistant sent its birth message. Republish discovery and state after a random delay
+     * inside the jitter window, so a fleet of displays doesn't answer all at once. Birth
+     * messages arriving while a republish is pending collapse into it.
+     */
+    public void onHomeAssistantOnline(int windowMs) {
+        synchronized (this) {
+            if (pendingRediscovery != null && !pendingRediscovery.isDone()) {
+                Log.d(TAG, "Home Assistant online again, rediscovery already pending");
+                return;
+            }
+            long delay = birthDelayMs(windowMs);
+            Log.i(TAG, "Home Assistant online, republishing discovery in " + delay + "ms");
+            pendingRediscovery = scheduler.schedule(() -> {
+                invalidateDiscovery();
+                publishStatus(null);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Random point in the jitter window after a Home Assistant birth message
+    static long birthDelayMs(int windowMs) {
+        return windowMs > 0 ? ThreadLocalRandom.current().nextLong(windowMs) : 0;
+    }
+
+    private synchronized byte[] getDiscoveryPayload() throws JSONException {
+        String key = mTopics.clientId + "|" + mDevice.name() + "|" + mConsolidatedState + "|" + mDiagnostics;
+        if (!key.equals(discoveryKey)) {
+            discoveryPayload = buildConfig().toString().getBytes(StandardCharsets.UTF_8);
+            discoveryHash = sha256(discoveryPayload);
+            discoveryKey = key;
+        }
+        return discoveryPayload;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime ships SHA-256, fall back to something that still detects changes
+            return Integer.toHexString(Arrays.hashCode(data));
+        }
+    }
+
+    // Point a component at its own topic, or at its field of the consolidated state document
+    private void putStateTopic(JSONObject component, String topic, String field) throws JSONException {
+        if (mConsolidatedState) {
+            component.put("state_topic", mTopics.state);
+            component.put("value_template", "{{ value_json." + field + " }}");
+        } else {
+            component.put("state_topic", topic);
+        }
+    }
+
+    private void putDiagnostic(JSONObject components, String field, String name, String unit, String stateClass) throws JSONException {
+        String clientId = mTopics.clientId;
+        JSONObject payload = new JSONObject();
+        payload.put("p", "sensor");
+        payload.put("name", name);
+        payload.put("state_topic", mTopics.diagnostics);
+        payload.put("value_template", "{{ value_json." + field + " }}");
+        payload.put("entity_category", "diagnostic");
+        if (unit != null) payload.put("unit_of_measurement", unit);
+        payload.put("state_class", stateClass);
+        payload.put("unique_id", clientId + "_diag_" + field);
+        components.put(clientId + "_diag_" + field, payload);
+    }
+
+    JSONObject buildConfig() throws JSONException {
+        String clientId = mTopics.clientId;
+        JSONObject configPayload = new JSONObject();
+
+        JSONObject device = new JSONObject();
+        device.put("ids", clientId);
+        device.put("name", "Shelly Wall Display");
+        device.put("mf", "Shelly");
+        configPayload.put("dev", device);
+
+        JSONObject origin = new JSONObject();
+        origin.put("name", "ShellyElevateV2");
+        origin.put("url", "https://github.com/RapierXbox/ShellyElevate");
+        configPayload.put("o", origin);
+
+        JSONObject components = new JSONObject();
+
+        JSONObject tempSensorPayload = new JSONObject();
+        tempSensorPayload.put("p", "sensor");
+        tempSensorPayload.put("name", "Temperature");
+        putStateTopic(tempSensorPayload, mTopics.temp, "temp");
+        tempSensorPayload.put("device_class", "temperature");
+        tempSensorPayload.put("unit_of_measurement", "°C");
+        tempSensorPayload.put("unique_id", clientId + "_temp");
+        components.put(clientId + "_temp", tempSensorPayload);
+
+        JSONObject humSensorPayload = new JSONObject();
+        humSensorPayload.put("p", "sensor");
+        humSensorPayload.put("name", "Humidity");
+        putStateTopic(humSensorPayload, mTopics.hum, "hum");
+        humSensorPayload.put("device_class", "humidity");
+        humSensorPayload.put("unit_of_measurement", "%");
+        humSensorPayload.put("unique_id", clientId + "_hum");
+        components.put(clientId + "_hum", humSensorPayload);
+
+        JSONObject luxSensorPayload = new JSONObject();
+        luxSensorPayload.put("p", "sensor");
+        luxSensorPayload.put("name", "Light");
+        putStateTopic(luxSensorPayload, mTopics.lux, "lux");
+        luxSensorPayload.put("device_class", "illuminance");
+        luxSensorPayload.put("unit_of_measurement", "lx");
+        luxSensorPayload.put("unique_id", clientId + "_lux");
+        components.put(clientId + "_lux", luxSensorPayload);
+
+        if (mDevice.hasProximitySensor) {
+            JSONObject proximitySensorPayload = new JSONObject();
+            proximitySensorPayload.put("p", "sensor");
+            proximitySensorPayload.put("name", "Proximity");
+            putStateTopic(proximitySensorPayload, mTopics.proximity, "proximity");
+            proximitySensorPayload.put("device_class", "distance");
+            proximitySensorPayload.put("unit_of_measurement", "cm");
+            proximitySensorPayload.put("unique_id", clientId + "_proximity");
+            components.put(clientId + "_proximity", proximitySensorPayload);
+        }
+
+        // buttons (numbered 1-4 for user-friendliness)
+        // Using device triggers (events) with single/double/long press support
+        var buttons = mDevice.buttons;
+        if (buttons > 0) {
+            for (int i = 1; i <= buttons; i++) {
+                // Event entity for automations - supports single, double, and long press
+                JSONObject eventPayload = new JSONObject();
+                eventPayload.put("p", "event");
+                eventPayload.put("name", "Button " + i);
+                eventPayload.put("state_topic", mTopics.buttonEvent(i));
+                eventPayload.put("device_class", "button");
+                // Register all supported event types
+                JSONArray eventTypes = new JSONArray();
+                eventTypes.put("single");
+                eventTypes.put("double");
+                eventTypes.put("long");
+                eventPayload.put("event_types", eventTypes);
+                eventPayload.put("unique_id", clientId + "_button_" + i + "_event");
+                components.put(clientId + "_button_" + i + "_event", eventPayload);
+            }
+        }
+
+        for (int num = 0; num < mDevice.inputs; num++) {
+            // relay
+            JSONObject relaySwitchPayload = new JSONObject();
+            relaySwitchPayload.put("p", "switch");
+            relaySwitchPayload.put("name", ("Relay " + (num >0 ? (" " + num): "")).trim());
+            putStateTopic(relaySwitchPayload, mTopics.relayState(num), "relay" + MqttTopics.relaySuffix(num));
+            relaySwitchPayload.put("command_topic", mTopics.relayCommand(num));
+            relaySwitchPayload.put("device_class", "outlet");
+            relaySwitchPayload.put("unique_id", clientId + "_relay" + (num >0 ? ("_" + num): ""));
+            components.put(clientId + "_relay" + (num >0 ? ("_" + num): ""), relaySwitchPayload);
+        }
+
+        JSONObject sleepButtonPayload = new JSONObject();
+        sleepButtonPayload.put("p", "button");
+        sleepButtonPayload.put("name", "Sleep");
+        sleepButtonPayload.put("command_topic", mTopics.sleep);
+        sleepButtonPayload.put("unique_id", clientId + "_sleep");
+        components.put(clientId + "_sleep", sleepButtonPayload);
+
+        JSONObject wakeButtonPayload = new JSONObject();
+        wakeButtonPayload.put("p", "button");
+        wakeButtonPayload.put("name", "Wake");
+        wakeButtonPayload.put("command_topic", mTopics.wake);
+        wakeButtonPayload.put("unique_id", clientId + "_wake");
+        components.put(clientId + "_wake", wakeButtonPayload);
+
+        JSONObject rebootButtonPayload = new JSONObject();
+        rebootButtonPayload.put("p", "button");
+        rebootButtonPayload.put("name", "Reboot");
+        rebootButtonPayload.put("command_topic", mTopics.reboot);
+        rebootButtonPayload.put("device_class", "restart");
+        rebootButtonPayload.put("unique_id", clientId + "_reboot");
+        components.put(clientId + "_reboot", rebootButtonPayload);
+
+        JSONObject restartAppButtonPayload = new JSONObject();
+        restartAppButtonPayload.put("p", "button");
+        restartAppButtonPayload.put("name", "Restart App");
+        restartAppButtonPayload.put("command_topic", mTopics.restartApp);
+        restartAppButtonPayload.put("device_class", "restart");
+        restartAppButtonPayload.put("unique_id", clientId + "_restart_app");
+        components.put(clientId + "_restart_app", restartAppButtonPayload);
+
+        JSONObject sleepingBinarySensorPayload = new JSONObject();
+        sleepingBinarySensorPayload.put("p", "binary_sensor");
+        sleepingBinarySensorPayload.put("name", "Sleeping");
+        putStateTopic(sleepingBinarySensorPayload, mTopics.sleeping, "sleeping");
+        sleepingBinarySensorPayload.put("unique_id", clientId + "_sleeping");
+        components.put(clientId + "_sleeping", sleepingBinarySensorPayload);
+
+        if (mDiagnostics) {
+            putDiagnostic(components, "publish_latency_p50", "Publish Latency p50", "ms", "measurement");
+            putDiagnostic(components, "publish_latency_p99", "Publish Latency p99", "ms", "measurement");
+            putDiagnostic(components, "queue_depth", "Publish Queue Depth", null, "measurement");
+            putDiagnostic(components, "dropped", "Dropped Messages", null, "total_increasing");
+            putDiagnostic(components, "reconnects", "MQTT Reconnects", null, "total_increasing");
+            putDiagnostic(components, "heap_used", "Heap Used", "MB", "measurement");
+            putDiagnostic(components, "threads", "Threads", null, "measurement");
+            putDiagnostic(components, "looper_lag", "Main Looper Lag p99", "ms", "measurement");
+        }
+
+        // TODO: brightness as both state and control
+
+        configPayload.put("cmps", components);
+
+        configPayload.put("state_topic", MQTT_TOPIC_STATUS);
+
+        return configPayload;
+    }
+}
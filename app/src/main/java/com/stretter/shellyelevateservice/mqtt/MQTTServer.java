@@ -9,54 +9,204 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttCallback;
-import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
 import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
 import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import com.stretter.shellyelevateservice.DeviceModel;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
 
 public class MQTTServer {
 
-    private MqttClient mMqttClient;
+    private static final String OFFLINE_BUFFER_FILE = "mqtt_offline.buf";
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 60_000;
+    // Aliases we accept from the broker on inbound publishes
+    private static final int INBOUND_TOPIC_ALIAS_MAXIMUM = 16;
+    private static final long DIAGNOSTICS_INTERVAL_SEC = 60;
+    // Upper bound for the in-flight window, whatever Receive Maximum the broker grants
+    private static final int MAX_INFLIGHT = 32;
+
+    private volatile MqttAsyncClient mMqttClient;
     private final MemoryPersistence mMemoryPersistence;
+    private final MqttPublisher mPublisher;
+    private final OfflineBuffer mOfflineBuffer;
+    private final ReportingPolicy mReportingPolicy;
+    private final DeviceStatePublisher mStatePublisher;
     private final ShellyElevateMQTTCallback mShellyElevateMQTTCallback;
     private final MqttConnectionOptions mMqttConnectionsOptions;
     private final ScheduledExecutorService scheduler;
     private String clientId;
+    private MqttTopics mTopics;
     private boolean validForConnection;
-    private volatile boolean connecting = false;
+
+    /**
+     * IDLE -> CONNECTING -> CONNECTED -> (connection lost) BACKOFF -> CONNECTING -> ...
+     * A failed connect also goes to BACKOFF.
+     */
+    public enum ConnectionState {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        BACKOFF
+    }
+
+    private final Object connectionLock = new Object();
+    private final MqttCallback mClientCallback;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private ConnectionState connectionState = ConnectionState.IDLE;
+    private ScheduledFuture<?> pendingRetry;
+    private int retryAttempt;
+
+    // Connection metrics, SystemClock.elapsedRealtime() based
+    private long connectedSince;
+    private long disconnectedSince;
+    private long lastTimeToReconnectMs = -1;
+    private long connectCount;
+    private long reconnectCount;
+    private long connectFailureCount;
+    private long lastTimeToSyncedMs = -1;
+    private final MetricsRegistry.Histogram mTimeToSynced = new MetricsRegistry.Histogram();
 
     public MQTTServer() {
         mMemoryPersistence = new MemoryPersistence();
-        mShellyElevateMQTTCallback = new ShellyElevateMQTTCallback();
         mMqttConnectionsOptions = new MqttConnectionOptions();
         scheduler = Executors.newScheduledThreadPool(1);
+        mPublisher = new MqttPublisher();
+        mReportingPolicy = new ReportingPolicy();
+        mReportingPolicy.load(mSharedPreferences);
+        mOfflineBuffer = new OfflineBuffer(new File(mApplicationContext.getFilesDir(), OFFLINE_BUFFER_FILE),
+                mSharedPreferences.getInt(SP_MQTT_OFFLINE_BUFFER_KB, 256) * 1024);
 
         setupClientId();
+        mTopics = new MqttTopics(clientId, DeviceModel.getReportedDevice());
+        mShellyElevateMQTTCallback = new ShellyElevateMQTTCallback(mTopics);
+        mStatePublisher = createStatePublisher();
+        mStatePublisher.configure(mSharedPreferences.getBoolean(SP_MQTT_CONSOLIDATED_STATE, false),
+                mSharedPreferences.getBoolean(SP_MQTT_DIAGNOSTICS, false));
+        mClientCallback = createClientCallback();
+        registerPublishPolicies();
         registerSettingsReceiver();
         schedulePeriodicTempHum();
+        scheduleReportingTick();
+        registerMetrics();
+        scheduleDiagnostics();
+        registerNetworkCallback();
 
         checkCredsAndConnect();
     }
 
+    private MqttCallback createClientCallback() {
+        return new MqttCallback() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                Log.i("MQTT", "Connect complete: " + serverURI);
+            }
+
+            @Override
+            public void disconnected(MqttDisconnectResponse disconnectResponse) {
+                Log.w("MQTT", "Disconnected: " + disconnectResponse.getReasonString());
+                onConnectionLost();
+            }
+
+            @Override
+            public void mqttErrorOccurred(MqttException exception) {
+                Log.e("MQTT", "MQTT error occurred", exception);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                mShellyElevateMQTTCallback.messageArrived(topic, message);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttToken token) {}
+
+            @Override
+            public void authPacketArrived(int reasonCode, MqttProperties properties) {}
+        };
+    }
+
+    private DeviceStatePublisher createStatePublisher() {
+        DeviceStatePublisher.Link link = new DeviceStatePublisher.Link() {
+            @Override
+            public boolean isEnabled() {
+                return MQTTServer.this.isEnabled();
+            }
+
+            @Override
+            public boolean isConnected() {
+                MqttAsyncClient client = mMqttClient;
+                return client != null && client.isConnected();
+            }
+        };
+        DeviceStatePublisher.Readings readings = new DeviceStatePublisher.Readings() {
+            @Override
+            public double temperature() {
+                return mDeviceHelper.getTemperature();
+            }
+
+            @Override
+            public double humidity() {
+                return mDeviceHelper.getHumidity();
+            }
+
+            @Override
+            public boolean relay(int num) {
+                return mDeviceHelper.getRelay(num);
+            }
+
+            @Override
+            public float lux() {
+                return mDeviceSensorManager.getLastMeasuredLux();
+            }
+
+            @Override
+            public float screenBrightness() {
+                return mDeviceHelper.getScreenBrightness();
+            }
+
+            @Override
+            public float proximity() {
+                return mDeviceSensorManager.getLastMeasuredDistance();
+            }
+        };
+        DeviceStatePublisher statePublisher = new DeviceStatePublisher(mTopics, DeviceModel.getReportedDevice(),
+                mPublisher, mOfflineBuffer, mReportingPolicy, scheduler, link, readings);
+
+        String version = "unknown";
+        try {
+            PackageInfo pInfo = mApplicationContext.getPackageManager()
+                    .getPackageInfo(mApplicationContext.getPackageName(), 0);
+            version = pInfo.versionName;
+        } catch (PackageManager.NameNotFoundException ignored) {}
+        statePublisher.setAppInfo(mApplicationContext.getPackageName(), version);
+        if (mMetricsRegistry != null) statePublisher.setMetrics(mMetricsRegistry, this::getReconnectCount);
+        return statePublisher;
+    }
+
     private void setupClientId() {
         clientId = mSharedPreferences.getString(SP_MQTT_CLIENTID, "shellywalldisplay");
         if (clientId.equals("shellyelevate") || clientId.equals("shellywalldisplay") || clientId.length() <= 2) {
@@ -65,10 +215,24 @@ public class MQTTServer {
         }
     }
 
+    private void registerPublishPolicies() {
+        mStatePublisher.registerPublishPolicies(mSharedPreferences.getInt(SP_MQTT_SENSOR_EXPIRY_SEC, 60));
+    }
+
     private void registerSettingsReceiver() {
         BroadcastReceiver settingsChangedBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                mReportingPolicy.load(mSharedPreferences);
+                registerPublishPolicies();
+
+                boolean consolidatedState = mSharedPreferences.getBoolean(SP_MQTT_CONSOLIDATED_STATE, false);
+                boolean diagnostics = mSharedPreferences.getBoolean(SP_MQTT_DIAGNOSTICS, false);
+                if (mStatePublisher.configure(consolidatedState, diagnostics)) {
+                    // Discovery lists different entities or topics now, send it and the full state again
+                    publishStatus();
+                }
+
                 checkCredsAndConnect();
             }
         };
@@ -77,7 +241,42 @@ public class MQTTServer {
     }
 
     private void schedulePeriodicTempHum() {
-        scheduler.scheduleWithFixedDelay(this::publishTempAndHum, 0, 5, TimeUnit.SECONDS);
+        // Sample every 5s, the reporting policy decides what actually gets published
+        scheduler.scheduleWithFixedDelay(this::sampleTempAndHum, 0, 5, TimeUnit.SECONDS);
+    }
+
+    private void scheduleReportingTick() {
+        scheduler.scheduleWithFixedDelay(() -> mStatePublisher.tick(System.currentTimeMillis()),
+                1, 1, TimeUnit.SECONDS);
+    }
+
+    private void registerMetrics() {
+        MetricsRegistry registry = mMetricsRegistry;
+        if (registry == null) return;
+
+        registry.register("mqtt_publish_latency_ms", mPublisher.getLatencyHistogram());
+        registry.gauge("mqtt_queue_depth", mPublisher::getQueueDepth);
+        registry.gauge("mqtt_queue_max_depth", mPublisher::getMaxQueueDepth);
+        registry.gauge("mqtt_enqueued_total", mPublisher::getEnqueuedCount);
+        registry.gauge("mqtt_published_total", mPublisher::getPublishedCount);
+        registry.gauge("mqtt_coalesced_total", mPublisher::getCoalescedCount);
+        registry.gauge("mqtt_dropped_total", mPublisher::getDroppedCount);
+        registry.gauge("mqtt_failed_total", mPublisher::getFailedCount);
+        registry.gauge("mqtt_offline_buffered", mOfflineBuffer::size);
+        registry.gauge("mqtt_connected", () -> getConnectionState() == ConnectionState.CONNECTED ? 1 : 0);
+        registry.gauge("mqtt_connection_uptime_ms", this::getConnectionUptimeMs);
+        registry.gauge("mqtt_connects_total", this::getConnectCount);
+        registry.gauge("mqtt_reconnects_total", this::getReconnectCount);
+        registry.gauge("mqtt_connect_failures_total", this::getConnectFailureCount);
+        registry.gauge("mqtt_last_reconnect_ms", this::getLastTimeToReconnectMs);
+        registry.register("mqtt_time_to_synced_ms", mTimeToSynced);
+        registry.gauge("mqtt_inflight_window", mPublisher::getMaxInflight);
+        registry.gauge("mqtt_unknown_topics_total", mShellyElevateMQTTCallback::getUnknownTopicCount);
+    }
+
+    private void scheduleDiagnostics() {
+        scheduler.scheduleWithFixedDelay(mStatePublisher::publishDiagnostics,
+                DIAGNOSTICS_INTERVAL_SEC, DIAGNOSTICS_INTERVAL_SEC, TimeUnit.SECONDS);
     }
 
     public void checkCredsAndConnect() {
@@ -92,134 +291,239 @@ public class MQTTServer {
     }
 
     public void connect() {
-        if (!validForConnection || connecting || (mMqttClient != null && mMqttClient.isConnected())) return;
-
-        connecting = true;
+        synchronized (connectionLock) {
+            if (!validForConnection) return;
+            if (connectionState == ConnectionState.CONNECTING || connectionState == ConnectionState.CONNECTED) return;
+            cancelRetry();
+            connectionState = ConnectionState.CONNECTING;
+        }
         Log.d("MQTT", "Connecting...");
         scheduler.execute(this::doConnect);
     }
 
     private void doConnect() {
-        if (mMqttClient != null && mMqttClient.isConnected()) return;
-
         try {
             mMqttConnectionsOptions.setUserName(mSharedPreferences.getString(SP_MQTT_USERNAME, ""));
             mMqttConnectionsOptions.setPassword(mSharedPreferences.getString(SP_MQTT_PASSWORD, "").getBytes());
-            mMqttConnectionsOptions.setAutomaticReconnect(true);
+            // Reconnects are driven by our own backoff, see scheduleRetry()
+            mMqttConnectionsOptions.setAutomaticReconnect(false);
             mMqttConnectionsOptions.setConnectionTimeout(5);
-            mMqttConnectionsOptions.setCleanStart(true);
+            mMqttConnectionsOptions.setTopicAliasMaximum(INBOUND_TOPIC_ALIAS_MAXIMUM);
+            // A persistent session keeps our subscriptions on the broker across short disconnects
+            boolean persistentSession = mSharedPreferences.getBoolean(SP_MQTT_PERSISTENT_SESSION, false);
+            mMqttConnectionsOptions.setCleanStart(!persistentSession);
+            mMqttConnectionsOptions.setSessionExpiryInterval(persistentSession
+                    ? (long) mSharedPreferences.getInt(SP_MQTT_SESSION_EXPIRY_SEC, 300) : 0L);
+
+            String serverUri = mSharedPreferences.getString(SP_MQTT_BROKER, "") + ":" + mSharedPreferences.getInt(SP_MQTT_PORT, 1883);
+            // Reuse the client across reconnects, only replace it when the broker changed
+            if (mMqttClient == null || !serverUri.equals(mMqttClient.getServerURI())) {
+                closeClient();
+                mMqttClient = new MqttAsyncClient(serverUri, clientId, mMemoryPersistence);
+                mMqttClient.setCallback(mClientCallback);
+                mPublisher.setClient(mMqttClient);
+            }
 
-            mMqttClient = new MqttClient(
-                mSharedPreferences.getString(SP_MQTT_BROKER, "") + ":" + mSharedPreferences.getInt(SP_MQTT_PORT, 1883),
-                clientId, mMemoryPersistence
-            );
+            // LWT
+            MqttMessage lwtMessage = new MqttMessage("offline".getBytes());
+            lwtMessage.setQos(1);
+            lwtMessage.setRetained(true);
+            mMqttConnectionsOptions.setWill(mTopics.status, lwtMessage);
 
-            // Set callback only once
-            mMqttClient.setCallback(new MqttCallback() {
+            mPublisher.resetTopicAliases();
+            mMqttClient.connect(mMqttConnectionsOptions, null, new MqttActionListener() {
                 @Override
-                public void connectComplete(boolean reconnect, String serverURI) {
-                    Log.i("MQTT", "Connected to " + serverURI + ", reconnect: " + reconnect);
-                    connecting = false;
-                    safeOnConnected();
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    onConnected(asyncActionToken);
                 }
 
                 @Override
-                public void disconnected(MqttDisconnectResponse disconnectResponse) {
-                    Log.w("MQTT", "Disconnected: " + disconnectResponse.getReasonString());
-                    connecting = false;
-                    // automatically handled by reconnect
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Log.w("MQTT", "Connect failed: " + exception);
+                    onConnectFailed();
                 }
+            });
+        } catch (MqttException e) {
+            Log.e("MQTT", "Connect failed: ", e);
+            onConnectFailed();
+        }
+    }
 
-                @Override
-                public void mqttErrorOccurred(MqttException exception) {
-                    Log.e("MQTT", "MQTT error occurred", exception);
-                }
+    private void onConnected(IMqttToken token) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (connectionLock) {
+            if (connectionState != ConnectionState.CONNECTING) return;
+            connectionState = ConnectionState.CONNECTED;
+            retryAttempt = 0;
+            connectCount++;
+            if (disconnectedSince > 0) {
+                lastTimeToReconnectMs = now - disconnectedSince;
+                reconnectCount++;
+                disconnectedSince = 0;
+            }
+            connectedSince = now;
+        }
+        boolean sessionPresent = token.getSessionPresent();
+        // Outgoing topic aliases the broker accepts, the publisher gives them to the sensor topics
+        MqttProperties connack = token.getResponseProperties();
+        Integer topicAliasMaximum = connack != null ? connack.getTopicAliasMaximum() : null;
+        mPublisher.setTopicAliasMaximum(topicAliasMaximum != null ? topicAliasMaximum : 0);
+        // Receive Maximum defaults to 65535 when the broker doesn't send one
+        Integer receiveMaximum = connack != null ? connack.getReceiveMaximum() : null;
+        mPublisher.setMaxInflight(Math.min(receiveMaximum != null ? receiveMaximum : 65535, MAX_INFLIGHT));
+        Log.i("MQTT", "Connected to " + mMqttClient.getServerURI()
+                + ", session present: " + sessionPresent
+                + ", topic aliases: " + (topicAliasMaximum != null ? topicAliasMaximum : 0)
+                + ", in-flight window: " + mPublisher.getMaxInflight()
+                + (lastTimeToReconnectMs >= 0 ? ", last reconnect took " + lastTimeToReconnectMs + "ms" : ""));
+        mPublisher.wake();
+        safeOnConnected(sessionPresent);
+    }
 
-                @Override
-                public void messageArrived(String topic, MqttMessage message) {
-                    mShellyElevateMQTTCallback.messageArrived(topic, message);
-                }
+    private void onConnectFailed() {
+        synchronized (connectionLock) {
+            if (connectionState != ConnectionState.CONNECTING) return;
+            connectFailureCount++;
+            connectionState = ConnectionState.BACKOFF;
+            scheduleRetry();
+        }
+    }
 
-                @Override
-                public void deliveryComplete(IMqttToken token) {}
+    private void onConnectionLost() {
+        synchronized (connectionLock) {
+            if (connectionState != ConnectionState.CONNECTED) return;
+            connectionState = ConnectionState.BACKOFF;
+            disconnectedSince = SystemClock.elapsedRealtime();
+            connectedSince = 0;
+            scheduleRetry();
+        }
+    }
 
-                @Override
-                public void authPacketArrived(int reasonCode, MqttProperties properties) {}
-            });
+    private void scheduleRetry() {
+        long delay = retryDelayMs(retryAttempt);
+        retryAttempt++;
+        Log.i("MQTT", "Retrying connection in " + delay + "ms");
+        pendingRetry = scheduler.schedule(this::retry, delay, TimeUnit.MILLISECONDS);
+    }
 
-            // LWT
-            MqttMessage lwtMessage = new MqttMessage("offline".getBytes());
-            lwtMessage.setQos(1);
-            lwtMessage.setRetained(true);
-            mMqttConnectionsOptions.setWill(parseTopic(MQTT_TOPIC_STATUS), lwtMessage);
+    // Exponential backoff with jitter so a fleet of displays doesn't reconnect in lockstep
+    static long retryDelayMs(int attempt) {
+        long ceiling = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(attempt, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void retry() {
+        synchronized (connectionLock) {
+            if (connectionState != ConnectionState.BACKOFF) return;
+            pendingRetry = null;
+            connectionState = ConnectionState.CONNECTING;
+        }
+        doConnect();
+    }
+
+    private void cancelRetry() {
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+            pendingRetry = null;
+        }
+    }
+
+    private void registerNetworkCallback() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) mApplicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) return;
 
-            mMqttClient.connect(mMqttConnectionsOptions);
+        mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                // Skip the rest of the backoff, the broker is most likely reachable again
+                synchronized (connectionLock) {
+                    if (connectionState != ConnectionState.BACKOFF) return;
+                    cancelRetry();
+                    retryAttempt = 0;
+                    connectionState = ConnectionState.CONNECTING;
+                }
+                Log.i("MQTT", "Network available, reconnecting now");
+                scheduler.execute(MQTTServer.this::doConnect);
+            }
+        };
+        try {
+            connectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        } catch (RuntimeException e) {
+            Log.w("MQTT", "Cannot watch network changes", e);
+            mNetworkCallback = null;
+        }
+    }
+
+    private void closeClient() {
+        if (mMqttClient == null) return;
+        try {
+            if (mMqttClient.isConnected()) mMqttClient.disconnectForcibly(1000);
+            mMqttClient.close();
         } catch (MqttException e) {
-            Log.e("MQTT", "Connect failed, scheduling retry in 60s: ", e);
-            connecting = false;
-            scheduler.schedule(this::connect, 60, TimeUnit.SECONDS);
+            Log.w("MQTT", "Error closing MQTT client", e);
         }
+        mMqttClient = null;
     }
 
-    private void safeOnConnected() {
-        scheduler.schedule(() -> {
+    private void safeOnConnected(boolean sessionPresent) {
+        scheduler.execute(() -> {
             if (mMqttClient != null && mMqttClient.isConnected()) {
                 try {
-                    // Subscriptions
-                    mMqttClient.subscribe("shellyelevateservice/" + clientId + "/#", 1);
-                    mMqttClient.subscribe(MQTT_TOPIC_HOME_ASSISTANT_STATUS, 1);
+                    // Subscriptions, a resumed session still has them
+                    if (!sessionPresent) {
+                        mMqttClient.subscribe(mTopics.subscription, 1);
+                        mMqttClient.subscribe(MQTT_TOPIC_HOME_ASSISTANT_STATUS, 1);
+                    }
 
-                    publishStatus();
+                    publishStatus(true);
                 } catch (Exception e) {
                     Log.e("MQTT", "onConnected error", e);
                 }
             }
-        }, 150, TimeUnit.MILLISECONDS);
+        });
     }
 
     public void publishStatus() {
-        if (mMqttClient == null || !mMqttClient.isConnected()) return;
-
-        scheduler.execute(() -> {
-            try {
-                // Publish hello info
-                publishHello();
-
-                // Publish config
-                publishConfig();
-
-                // Publish online status last
-                publishInternal(parseTopic(MQTT_TOPIC_STATUS), "online", 1, true);
-
-                // Stagger sensor publishes
-                scheduler.schedule(this::publishTempAndHum, 50, TimeUnit.MILLISECONDS);
-                for (int num = 0; num < DeviceModel.getReportedDevice().inputs; num++) {
-                    int finalNum = num;
-                    scheduler.schedule(() -> publishRelay(finalNum, mDeviceHelper.getRelay(finalNum)), 100, TimeUnit.MILLISECONDS);
-                }
-                scheduler.schedule(() -> publishLux(mDeviceSensorManager.getLastMeasuredLux()), 150, TimeUnit.MILLISECONDS);
-                scheduler.schedule(() -> publishScreenBrightness(mDeviceHelper.getScreenBrightness()), 200, TimeUnit.MILLISECONDS);
-
-                if (DeviceModel.getReportedDevice().hasProximitySensor) {
-                    scheduler.schedule(() -> publishProximity(mDeviceSensorManager.getLastMeasuredDistance()), 250, TimeUnit.MILLISECONDS);
-                }
+        publishStatus(false);
+    }
 
-                // Sleeping state is published by ShellyElevateService when it dims/wakes
-                scheduler.schedule(() -> publishSleeping(false), 300, TimeUnit.MILLISECONDS);
+    /**
+     * Hello, discovery, online and the full current state, see {@link DeviceStatePublisher#publishStatus}.
+     *
+     * @param afterConnect also replay the offline buffer and record the time from connect until
+     *                     the broker acknowledged all of it
+     */
+    private void publishStatus(boolean afterConnect) {
+        long connection = getConnectCount();
+        mStatePublisher.publishStatus(afterConnect ? () -> onSynced(connection) : null);
+    }
 
-            } catch (Exception e) {
-                Log.e("MQTT", "publishStatus failed", e);
-            }
-        });
+    private void onSynced(long connection) {
+        long elapsed;
+        synchronized (connectionLock) {
+            // A reconnect in the meantime started its own burst
+            if (connection != connectCount || connectedSince == 0) return;
+            elapsed = SystemClock.elapsedRealtime() - connectedSince;
+            lastTimeToSyncedMs = elapsed;
+        }
+        mTimeToSynced.record(elapsed);
+        Log.i("MQTT", "Fully synced " + elapsed + "ms after connect");
     }
 
     public void disconnect() {
         Log.d("MQTT", "Disconnecting");
+        synchronized (connectionLock) {
+            cancelRetry();
+            connectionState = ConnectionState.IDLE;
+            connectedSince = 0;
+        }
         if (mMqttClient != null && mMqttClient.isConnected()) {
             try {
-                deleteConfig();
-                mMqttClient.publish(parseTopic(MQTT_TOPIC_STATUS), "offline".getBytes(), 1, true);
-                mMqttClient.disconnect();
+                // Bypass the publish queue, these have to be on the wire before we disconnect
+                mMqttClient.publish(mTopics.config, "".getBytes(), 1, false).waitForCompletion(2000);
+                mStatePublisher.invalidateDiscovery();
+                mMqttClient.publish(mTopics.status, "offline".getBytes(), 1, true).waitForCompletion(2000);
+                mMqttClient.disconnect().waitForCompletion(2000);
             } catch (MqttException e) {
                 Log.e("MQTT", "Error disconnecting MQTT client", e);
             }
@@ -234,247 +538,141 @@ public class MQTTServer {
         return isEnabled() && mMqttClient != null && mMqttClient.isConnected();
     }
 
-    public void publishInternal(String topic, String payload, int qos, boolean retained) {
-        if (!shouldSend()) {
-            Log.w("MQTT", "publishInternal skipped — client not connected: " + topic);
-            return;
-        }
-        try {
-            MqttMessage message = new MqttMessage(payload.getBytes());
-            message.setQos(qos);
-            message.setRetained(retained);
-            mMqttClient.publish(topic, message);
-        } catch (MqttException e) {
-            Log.e("MQTT", "Failed to publish to " + topic, e);
-        }
+    public MqttPublisher getPublisher() {
+        return mPublisher;
     }
 
-    public void publishTempAndHum() {
+    private void sampleTempAndHum() {
         float temp = (float) mDeviceHelper.getTemperature();
         float hum = (float) mDeviceHelper.getHumidity();
-        publishTemp(temp);
-        publishHum(hum);
+        if (temp != -999) {
+            mStatePublisher.report(ReportingPolicy.Sensor.TEMP, temp);
+            mEventStream.publishSensor("temp", temp);
+        }
+        if (hum != -999) {
+            mStatePublisher.report(ReportingPolicy.Sensor.HUM, hum);
+            mEventStream.publishSensor("hum", hum);
+        }
     }
 
-    public void publishTemp(float temp) {
-        if (temp == -999) return;
-        publishInternal(parseTopic(MQTT_TOPIC_TEMP_SENSOR), String.valueOf(temp), 1, false);
+    public void reportLux(float lux) {
+        mStatePublisher.report(ReportingPolicy.Sensor.LUX, lux);
     }
 
-    public void publishHum(float hum) {
-        if (hum == -999) return;
-        publishInternal(parseTopic(MQTT_TOPIC_HUM_SENSOR), String.valueOf(hum), 1, false);
+    public void reportProximity(float distance) {
+        mStatePublisher.report(ReportingPolicy.Sensor.PROXIMITY, distance);
     }
 
-    public void publishLux(float lux) {
-        publishInternal(parseTopic(MQTT_TOPIC_LUX_SENSOR), String.valueOf(lux), 1, false);
+    public ReportingPolicy getReportingPolicy() {
+        return mReportingPolicy;
     }
 
     public void publishScreenBrightness(float val) {
-        publishInternal(parseTopic(MQTT_TOPIC_SCREEN_BRIGHTNESS), String.valueOf(val), 1, false);
-    }
-    public void publishProximity(float distance) {
-        publishInternal(parseTopic(MQTT_TOPIC_PROXIMITY_SENSOR), String.valueOf(distance), 1, false);
+        mStatePublisher.publishScreenBrightness(val);
     }
 
     public void publishRelay(int num, boolean state) {
-        var mqttSuffix = (num >0 ? ("_" + num): "");
-        publishInternal(parseTopic(MQTT_TOPIC_RELAY_STATE) + mqttSuffix, state ? "ON" : "OFF", 1, false);
+        mStatePublisher.publishRelay(num, state);
     }
 
     public void publishSleeping(boolean state) {
-        publishInternal(parseTopic(MQTT_TOPIC_SLEEPING_BINARY_SENSOR), state ? "ON" : "OFF", 1, false);
+        mStatePublisher.publishSleeping(state);
+    }
+
+    public void publishButtonEvent(int buttonNumber, String eventType) {
+        mStatePublisher.publishButtonEvent(buttonNumber, eventType);
     }
 
     /**
-     * Publish a button event with specific event type (single, double, long).
-     * This is the preferred method for button events as it supports all action types.
+     * Answer an MQTT 5 request on the response topic it named.
      */
-    public void publishButtonEvent(int buttonNumber, String eventType) {
-        String eventPayload = "{\"event_type\": \"" + eventType + "\"}";
-        publishInternal(parseTopic(MQTT_TOPIC_BUTTON_EVENT) + "/" + buttonNumber, eventPayload, 1, false);
-        Log.i("MQTT", "Published button " + buttonNumber + " event: " + eventType);
+    public void publishResponse(String responseTopic, byte[] payload, byte[] correlationData) {
+        if (!isEnabled()) return;
+        mPublisher.publishResponse(responseTopic, payload, correlationData);
     }
 
     public void publishUnknownKey(int keyCode, boolean pressed) {
-        String payload = "{\"key_code\": " + keyCode + ", \"pressed\": " + pressed + ", \"timestamp\": " + System.currentTimeMillis() + "}";
-        publishInternal(parseTopic(MQTT_TOPIC_UNKNOWN_KEY), payload, 1, false);
-        Log.i("MQTT", "Published unknown key: " + payload);
+        mStatePublisher.publishUnknownKey(keyCode, pressed);
     }
 
-    public void publishHello() {
-        if (!shouldSend()) return;
-        try {
-            JSONObject json = new JSONObject();
-            json.put("name", mApplicationContext.getPackageName());
+    /**
+     * Home Assistant sent its birth message, republish within the configured jitter window.
+     */
+    public void onHomeAssistantOnline() {
+        mStatePublisher.onHomeAssistantOnline(Math.max(0, mSharedPreferences.getInt(SP_MQTT_BIRTH_JITTER_MS, 10000)));
+    }
 
-            String version = "unknown";
-            try {
-                PackageInfo pInfo = mApplicationContext.getPackageManager()
-                        .getPackageInfo(mApplicationContext.getPackageName(), 0);
-                version = pInfo.versionName;
-            } catch (PackageManager.NameNotFoundException ignored) {}
-
-            json.put("version", version);
-            var device = DeviceModel.getReportedDevice();
-            json.put("modelName", device.name());
-            json.put("proximity", device.hasProximitySensor ? "true" : "false");
-
-            publishInternal(parseTopic(MQTT_TOPIC_HELLO), json.toString(), 1, false);
-        } catch (JSONException e) {
-            Log.e("MQTT", "Error publishing hello", e);
-        }
+    public MqttTopics getTopics() {
+        return mTopics;
     }
 
-    private void publishConfig() throws JSONException, MqttException {
-        JSONObject configPayload = new JSONObject();
-
-        JSONObject device = new JSONObject();
-        device.put("ids", clientId);
-        device.put("name", "Shelly Wall Display");
-        device.put("mf", "Shelly");
-        configPayload.put("dev", device);
-
-        JSONObject origin = new JSONObject();
-        origin.put("name", "ShellyElevateV2");
-        origin.put("url", "https://github.com/RapierXbox/ShellyElevate");
-        configPayload.put("o", origin);
-
-        JSONObject components = new JSONObject();
-
-        JSONObject tempSensorPayload = new JSONObject();
-        tempSensorPayload.put("p", "sensor");
-        tempSensorPayload.put("name", "Temperature");
-        tempSensorPayload.put("state_topic", parseTopic(MQTT_TOPIC_TEMP_SENSOR));
-        tempSensorPayload.put("device_class", "temperature");
-        tempSensorPayload.put("unit_of_measurement", "°C");
-        tempSensorPayload.put("unique_id", clientId + "_temp");
-        components.put(clientId + "_temp", tempSensorPayload);
-
-        JSONObject humSensorPayload = new JSONObject();
-        humSensorPayload.put("p", "sensor");
-        humSensorPayload.put("name", "Humidity");
-        humSensorPayload.put("state_topic", parseTopic(MQTT_TOPIC_HUM_SENSOR));
-        humSensorPayload.put("device_class", "humidity");
-        humSensorPayload.put("unit_of_measurement", "%");
-        humSensorPayload.put("unique_id", clientId + "_hum");
-        components.put(clientId + "_hum", humSensorPayload);
-
-        JSONObject luxSensorPayload = new JSONObject();
-        luxSensorPayload.put("p", "sensor");
-        luxSensorPayload.put("name", "Light");
-        luxSensorPayload.put("state_topic", parseTopic(MQTT_TOPIC_LUX_SENSOR));
-        luxSensorPayload.put("device_class", "illuminance");
-        luxSensorPayload.put("unit_of_measurement", "lx");
-        luxSensorPayload.put("unique_id", clientId + "_lux");
-        components.put(clientId + "_lux", luxSensorPayload);
-
-        if (DeviceModel.getReportedDevice().hasProximitySensor) {
-            JSONObject proximitySensorPayload = new JSONObject();
-            proximitySensorPayload.put("p", "sensor");
-            proximitySensorPayload.put("name", "Proximity");
-            proximitySensorPayload.put("state_topic", parseTopic(MQTT_TOPIC_PROXIMITY_SENSOR));
-            proximitySensorPayload.put("device_class", "distance");
-            proximitySensorPayload.put("unit_of_measurement", "cm");
-            proximitySensorPayload.put("unique_id", clientId + "_proximity");
-            components.put(clientId + "_proximity", proximitySensorPayload);
-        }
+    public ShellyElevateMQTTCallback getCallback() {
+        return mShellyElevateMQTTCallback;
+    }
 
-        // buttons (numbered 1-4 for user-friendliness)
-        // Using device triggers (events) with single/double/long press support
-        var buttons = DeviceModel.getReportedDevice().buttons;
-        if (buttons > 0) {
-            for (int i = 1; i <= buttons; i++) {
-                // Event entity for automations - supports single, double, and long press
-                JSONObject eventPayload = new JSONObject();
-                eventPayload.put("p", "event");
-                eventPayload.put("name", "Button " + i);
-                eventPayload.put("state_topic", parseTopic(MQTT_TOPIC_BUTTON_EVENT) + "/" + i);
-                eventPayload.put("device_class", "button");
-                // Register all supported event types
-                JSONArray eventTypes = new JSONArray();
-                eventTypes.put("single");
-                eventTypes.put("double");
-                eventTypes.put("long");
-                eventPayload.put("event_types", eventTypes);
-                eventPayload.put("unique_id", clientId + "_button_" + i + "_event");
-                components.put(clientId + "_button_" + i + "_event", eventPayload);
-            }
-        }
+    public String getClientId() {
+        return clientId;
+    }
 
-        for (int num = 0; num < DeviceModel.getReportedDevice().inputs; num++) {
-            String mqttSuffix = (num >0 ? ("_" + num): "");
-            // relay
-            JSONObject relaySwitchPayload = new JSONObject();
-            relaySwitchPayload.put("p", "switch");
-            relaySwitchPayload.put("name", ("Relay " + (num >0 ? (" " + num): "")).trim());
-            relaySwitchPayload.put("state_topic", parseTopic(MQTT_TOPIC_RELAY_STATE) + mqttSuffix);
-            relaySwitchPayload.put("command_topic", parseTopic(MQTT_TOPIC_RELAY_COMMAND) + mqttSuffix);
-            relaySwitchPayload.put("device_class", "outlet");
-            relaySwitchPayload.put("unique_id", clientId + "_relay" + (num >0 ? ("_" + num): ""));
-            components.put(clientId + "_relay" + (num >0 ? ("_" + num): ""), relaySwitchPayload);
+    public ConnectionState getConnectionState() {
+        synchronized (connectionLock) {
+            return connectionState;
         }
+    }
 
-        JSONObject sleepButtonPayload = new JSONObject();
-        sleepButtonPayload.put("p", "button");
-        sleepButtonPayload.put("name", "Sleep");
-        sleepButtonPayload.put("command_topic", parseTopic(MQTT_TOPIC_SLEEP_BUTTON));
-        sleepButtonPayload.put("unique_id", clientId + "_sleep");
-        components.put(clientId + "_sleep", sleepButtonPayload);
-
-        JSONObject wakeButtonPayload = new JSONObject();
-        wakeButtonPayload.put("p", "button");
-        wakeButtonPayload.put("name", "Wake");
-        wakeButtonPayload.put("command_topic", parseTopic(MQTT_TOPIC_WAKE_BUTTON));
-        wakeButtonPayload.put("unique_id", clientId + "_wake");
-        components.put(clientId + "_wake", wakeButtonPayload);
-
-        JSONObject rebootButtonPayload = new JSONObject();
-        rebootButtonPayload.put("p", "button");
-        rebootButtonPayload.put("name", "Reboot");
-        rebootButtonPayload.put("command_topic", parseTopic(MQTT_TOPIC_REBOOT_BUTTON));
-        rebootButtonPayload.put("device_class", "restart");
-        rebootButtonPayload.put("unique_id", clientId + "_reboot");
-        components.put(clientId + "_reboot", rebootButtonPayload);
-
-        JSONObject restartAppButtonPayload = new JSONObject();
-        restartAppButtonPayload.put("p", "button");
-        restartAppButtonPayload.put("name", "Restart App");
-        restartAppButtonPayload.put("command_topic", parseTopic(MQTT_TOPIC_RESTART_APP_BUTTON));
-        restartAppButtonPayload.put("device_class", "restart");
-        restartAppButtonPayload.put("unique_id", clientId + "_restart_app");
-        components.put(clientId + "_restart_app", restartAppButtonPayload);
-
-        JSONObject sleepingBinarySensorPayload = new JSONObject();
-        sleepingBinarySensorPayload.put("p", "binary_sensor");
-        sleepingBinarySensorPayload.put("name", "Sleeping");
-        sleepingBinarySensorPayload.put("state_topic", parseTopic(MQTT_TOPIC_SLEEPING_BINARY_SENSOR));
-        sleepingBinarySensorPayload.put("unique_id", clientId + "_sleeping");
-        components.put(clientId + "_sleeping", sleepingBinarySensorPayload);
-
-        // TODO: brightness as both state and control
-
-        configPayload.put("cmps", components);
+    /**
+     * @return ms since the current connection was established, 0 when not connected
+     */
+    public long getConnectionUptimeMs() {
+        synchronized (connectionLock) {
+            return connectedSince > 0 ? SystemClock.elapsedRealtime() - connectedSince : 0;
+        }
+    }
 
-        configPayload.put("state_topic", MQTT_TOPIC_STATUS);
+    public long getConnectCount() {
+        synchronized (connectionLock) {
+            return connectCount;
+        }
+    }
 
-        mMqttClient.publish(parseTopic(MQTT_TOPIC_CONFIG_DEVICE), configPayload.toString().getBytes(), 1, true);
+    public long getReconnectCount() {
+        synchronized (connectionLock) {
+            return reconnectCount;
+        }
     }
 
-    private void deleteConfig() throws MqttException {
-        mMqttClient.publish(parseTopic(MQTT_TOPIC_CONFIG_DEVICE), "".getBytes(), 1, false);
+    public long getConnectFailureCount() {
+        synchronized (connectionLock) {
+            return connectFailureCount;
+        }
     }
 
-    private String parseTopic(String topic) {
-        return topic.replace("%s", clientId);
+    /**
+     * @return ms from losing the connection to being connected again, -1 before the first reconnect
+     */
+    public long getLastTimeToReconnectMs() {
+        synchronized (connectionLock) {
+            return lastTimeToReconnectMs;
+        }
     }
 
-    public String getClientId() {
-        return clientId;
+    /**
+     * @return ms from connect until the state burst was acknowledged, -1 before the first sync
+     */
+    public long getLastTimeToSyncedMs() {
+        synchronized (connectionLock) {
+            return lastTimeToSyncedMs;
+        }
     }
 
     public void onDestroy() {
+        if (mNetworkCallback != null) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mApplicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            connectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        }
         disconnect();
+        scheduler.execute(this::closeClient);
+        mPublisher.shutdown();
         if (scheduler != null && !scheduler.isShutdown()) scheduler.shutdown();
     }
 }
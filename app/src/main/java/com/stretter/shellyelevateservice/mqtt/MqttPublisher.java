@@ -0,0 +1,636 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import android.util.Log;
+
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous publish stage in front of the Paho async client.
+ *
+ * Callers only enqueue; a single dispatcher thread drains the queue and hands messages
+ * to {@link MqttAsyncClient#publish}, which returns immediately. Acknowledgements come back
+ * on Paho's callback thread and release the in-flight window.
+ *
+ * - Queue is bounded; when full the oldest coalescible (sensor) entry is evicted first,
+ *   otherwise the new message is dropped.
+ * - Topics registered with a coalescing policy own a single reusable slot: a newer value is
+ *   written into the slot in place, so superseded sensor values are never sent and the
+ *   enqueue path for numbers ({@link #publishNumber}) does not allocate. Sending still does:
+ *   a copy of the slot payload, because Paho keeps the array it is given, and the MqttMessage
+ *   (plus MqttProperties for topics with an expiry).
+ * - The in-flight window follows the broker's Receive Maximum ({@link #setMaxInflight}), so a
+ *   burst is paced by acknowledgements rather than sleeps. {@link #barrier} runs a callback
+ *   once everything queued before it has been acknowledged.
+ * - Topics with {@link Policy#withTopicAlias} carry an explicit MQTT 5 topic alias when one is
+ *   free ({@link #setTopicAliasMaximum}). Paho hands out outgoing aliases by itself, one per new
+ *   topic in send order until the broker's maximum is used up, and replaces any alias it did not
+ *   choose. The dispatcher follows the same count, so the alias set here is always the one Paho
+ *   sends, and the aliased topics get one when they are the first topics of a connection.
+ */
+public class MqttPublisher {
+
+    private static final String TAG = "MqttPublisher";
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+    private static final int DEFAULT_MAX_INFLIGHT = 10;
+    private static final long BARRIER_TIMEOUT_MS = 10_000;
+
+    /**
+     * QoS / retain / coalescing behaviour for a topic.
+     */
+    public static final class Policy {
+        // Latest-value topics (sensors, relay, sleeping): only the newest value matters
+        public static final Policy STATE = new Policy(1, false, true);
+        // Discrete events (buttons, keys, hello): every message must be delivered
+        public static final Policy EVENT = new Policy(1, false, false);
+        // Retained documents (status, discovery config)
+        public static final Policy RETAINED = new Policy(1, true, true);
+
+        public final int qos;
+        public final boolean retained;
+        public final boolean coalesce;
+        // MQTT 5 message expiry, 0 = never expires
+        public final long expirySeconds;
+        // Send with a topic alias while the broker grants one, for frequent small publishes
+        public final boolean topicAlias;
+
+        public Policy(int qos, boolean retained, boolean coalesce) {
+            this(qos, retained, coalesce, 0);
+        }
+
+        public Policy(int qos, boolean retained, boolean coalesce, long expirySeconds) {
+            this(qos, retained, coalesce, expirySeconds, false);
+        }
+
+        private Policy(int qos, boolean retained, boolean coalesce, long expirySeconds, boolean topicAlias) {
+            this.qos = qos;
+            this.retained = retained;
+            this.coalesce = coalesce;
+            this.expirySeconds = expirySeconds;
+            this.topicAlias = topicAlias;
+        }
+
+        public Policy withExpiry(long seconds) {
+            return new Policy(qos, retained, coalesce, Math.max(0, seconds), topicAlias);
+        }
+
+        public Policy withTopicAlias() {
+            return new Policy(qos, retained, coalesce, expirySeconds, true);
+        }
+    }
+
+    /**
+     * Counting window of unacknowledged publishes whose size can change between connections.
+     */
+    private static final class InflightWindow {
+        private int limit;
+        private int used;
+
+        InflightWindow(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized boolean tryAcquire(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (used >= limit) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            used++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (used > 0) used--;
+            notifyAll();
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = limit;
+            notifyAll();
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        synchronized boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (used > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private static final class Pending {
+        final String topic;
+        Policy policy;
+        byte[] payload;
+        int length;
+        // Original wall-clock time for replayed messages, 0 for live ones
+        long timestamp;
+        // Wall-clock time of the newest value this slot took, queued or already sent
+        long newestMillis;
+        long enqueuedAtNanos;
+        // Slots are reused, this tells whether the slot currently sits in the queue
+        boolean queued;
+        // Set for barrier entries, which carry no message
+        Runnable barrier;
+        // MQTT 5 correlation data for responses to a request
+        byte[] correlationData;
+
+        Pending(String topic, Policy policy, byte[] payload) {
+            this.topic = topic;
+            this.policy = policy;
+            this.payload = payload;
+            this.length = payload.length;
+        }
+
+        void set(byte[] src, int len, long time) {
+            if (payload.length < len) payload = new byte[Math.max(len, 16)];
+            System.arraycopy(src, 0, payload, 0, len);
+            length = len;
+            timestamp = time;
+        }
+
+        // Paho keeps a reference to the payload, it must not see later slot writes
+        byte[] snapshot() {
+            return policy.coalesce || length != payload.length ? Arrays.copyOf(payload, length) : payload;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Pending> queue;
+    private final Map<String, Pending> slots = new HashMap<>();
+    private final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    private final InflightWindow inflight;
+    private final Thread dispatcher;
+    // Scratch for number encoding, only touched while holding the queue lock
+    private final byte[] numberScratch = new byte[PayloadEncoder.MAX_NUMBER_LENGTH];
+
+    private volatile MqttAsyncClient client;
+    private volatile boolean running = true;
+
+    // Broker's Topic Alias Maximum for the current connection, -1 until the CONNACK is in
+    private volatile int topicAliasMaximum;
+    private volatile boolean topicAliasesStale;
+    // Dispatcher only: alias of every topic sent on this connection, 0 for none
+    private final Map<String, Integer> connectionTopics = new HashMap<>();
+
+    // Metrics
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+    private volatile long lastLatencyMs = 0;
+    private volatile double avgLatencyMs = 0;
+    private final MetricsRegistry.Histogram latencyHistogram = new MetricsRegistry.Histogram();
+
+    public MqttPublisher() {
+        this(DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_INFLIGHT);
+    }
+
+    public MqttPublisher(int capacity, int maxInflight) {
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(capacity);
+        this.inflight = new InflightWindow(maxInflight);
+        dispatcher = new Thread(this::dispatchLoop, "mqtt-publisher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public void setClient(MqttAsyncClient client) {
+        this.client = client;
+        wake();
+    }
+
+    /**
+     * Resize the in-flight window, e.g. to the Receive Maximum the broker granted on connect.
+     */
+    public void setMaxInflight(int maxInflight) {
+        inflight.setLimit(Math.max(1, maxInflight));
+    }
+
+    public int getMaxInflight() {
+        return inflight.getLimit();
+    }
+
+    /**
+     * Forget the topic aliases of the previous connection, call before every connect attempt.
+     */
+    public void resetTopicAliases() {
+        topicAliasMaximum = -1;
+        topicAliasesStale = true;
+    }
+
+    /**
+     * The Topic Alias Maximum the broker granted on connect, 0 if it sent none.
+     */
+    public void setTopicAliasMaximum(int maximum) {
+        topicAliasMaximum = Math.max(0, maximum);
+    }
+
+    /**
+     * Queue a callback that runs on the dispatcher once every message queued before it has
+     * been acknowledged by the broker (or failed).
+     */
+    public void barrier(Runnable callback) {
+        if (!running) return;
+        synchronized (queue) {
+            Pending pending = new Pending(null, Policy.EVENT, new byte[0]);
+            pending.barrier = callback;
+            enqueue(pending);
+        }
+    }
+
+    /**
+     * Queue the response to an MQTT 5 request, echoing its correlation data.
+     */
+    public boolean publishResponse(String responseTopic, byte[] payload, byte[] correlationData) {
+        if (!running) return false;
+
+        synchronized (queue) {
+            enqueuedCount.incrementAndGet();
+            if (queue.size() >= capacity && !evictOldestCoalescible()) {
+                droppedCount.incrementAndGet();
+                Log.w(TAG, "Publish queue full, dropping response for " + responseTopic);
+                return false;
+            }
+            Pending pending = new Pending(responseTopic, Policy.EVENT, payload);
+            pending.correlationData = correlationData;
+            enqueue(pending);
+        }
+        return true;
+    }
+
+    public void setPolicy(String topic, Policy policy) {
+        policies.put(topic, policy);
+    }
+
+    public Policy getPolicy(String topic) {
+        Policy policy = policies.get(topic);
+        return policy != null ? policy : Policy.EVENT;
+    }
+
+    /**
+     * Queue a message using the policy registered for its topic. Never blocks.
+     *
+     * @return false if the message was dropped because the queue is full
+     */
+    public boolean publish(String topic, byte[] payload) {
+        return publish(topic, payload, getPolicy(topic));
+    }
+
+    public boolean publish(String topic, byte[] payload, Policy policy) {
+        return publish(topic, payload, policy, 0);
+    }
+
+    /**
+     * Queue a message that was produced earlier. The original time is sent along as the
+     * {@code timestamp} user property so consumers can tell late deliveries apart.
+     */
+    public boolean publish(String topic, byte[] payload, Policy policy, long timestamp) {
+        if (!running) return false;
+
+        synchronized (queue) {
+            if (policy.coalesce) return enqueueSlot(topic, policy, payload, payload.length, timestamp);
+
+            enqueuedCount.incrementAndGet();
+            if (queue.size() >= capacity && !evictOldestCoalescible()) {
+                droppedCount.incrementAndGet();
+                Log.w(TAG, "Publish queue full, dropping message for " + topic);
+                return false;
+            }
+            Pending pending = new Pending(topic, policy, payload);
+            pending.timestamp = timestamp;
+            enqueue(pending);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a numeric sensor value. Once the topic's slot exists this does not allocate:
+     * the number is formatted straight into the slot's buffer.
+     */
+    public boolean publishNumber(String topic, double value, int maxDecimals) {
+        if (!running) return false;
+
+        synchronized (queue) {
+            int len = PayloadEncoder.encodeNumber(value, maxDecimals, numberScratch, 0);
+            return enqueueSlot(topic, getPolicy(topic), numberScratch, len, 0);
+        }
+    }
+
+    // Must hold the queue lock
+    private boolean enqueueSlot(String topic, Policy policy, byte[] src, int len, long timestamp) {
+        enqueuedCount.incrementAndGet();
+
+        Pending slot = slots.get(topic);
+        if (slot != null && timestamp > 0 && timestamp < slot.newestMillis) {
+            // A replayed value older than the one the slot holds or already sent must not win
+            coalescedCount.incrementAndGet();
+            return true;
+        }
+        long time = timestamp > 0 ? timestamp : System.currentTimeMillis();
+        if (slot != null && slot.queued && slot.timestamp > 0 && timestamp == 0) {
+            // A live value replacing a replayed one goes to the back like a fresh publish,
+            // the replay's queue position may be ahead of hello and discovery
+            queue.remove(slot);
+            slot.queued = false;
+        }
+        if (slot != null && slot.queued) {
+            // Keep the queue position, just replace the stale value
+            slot.set(src, len, timestamp);
+            slot.newestMillis = time;
+            coalescedCount.incrementAndGet();
+            return true;
+        }
+
+        if (queue.size() >= capacity && !evictOldestCoalescible()) {
+            droppedCount.incrementAndGet();
+            Log.w(TAG, "Publish queue full, dropping message for " + topic);
+            return false;
+        }
+
+        if (slot == null) {
+            slot = new Pending(topic, policy, new byte[Math.max(len, 16)]);
+            slots.put(topic, slot);
+        }
+        slot.policy = policy;
+        slot.set(src, len, timestamp);
+        slot.newestMillis = time;
+        enqueue(slot);
+        return true;
+    }
+
+    // Must hold the queue lock
+    private void enqueue(Pending pending) {
+        pending.enqueuedAtNanos = System.nanoTime();
+        pending.queued = true;
+        queue.addLast(pending);
+        if (queue.size() > maxQueueDepth) maxQueueDepth = queue.size();
+        queue.notify();
+    }
+
+    // Must hold the queue lock
+    private boolean evictOldestCoalescible() {
+        for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+            Pending p = it.next();
+            if (p.policy.coalesce) {
+                it.remove();
+                p.queued = false;
+                droppedCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wake the dispatcher, e.g. after the client (re)connected.
+     */
+    public void wake() {
+        synchronized (queue) {
+            queue.notify();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            Pending next;
+            byte[] payload;
+            long timestamp;
+            long enqueuedAtNanos;
+            try {
+                synchronized (queue) {
+                    while (running && (queue.isEmpty() || !isClientConnected())) {
+                        // Re-check the connection periodically, there is no callback for it here
+                        queue.wait(1000);
+                    }
+                    if (!running) return;
+                    next = queue.pollFirst();
+                    next.queued = false;
+                    payload = next.snapshot();
+                    timestamp = next.timestamp;
+                    enqueuedAtNanos = next.enqueuedAtNanos;
+                }
+
+                if (next.barrier != null) {
+                    // Everything before the barrier has been handed to Paho, wait for the acks
+                    if (!inflight.awaitEmpty(BARRIER_TIMEOUT_MS)) {
+                        Log.w(TAG, "Barrier passed with publishes still unacknowledged");
+                    }
+                    next.barrier.run();
+                    continue;
+                }
+
+                // Bound the number of unacknowledged publishes handed to Paho
+                if (!inflight.tryAcquire(5000)) {
+                    Log.w(TAG, "In-flight window exhausted, requeueing " + next.topic);
+                    requeueFirst(next);
+                    continue;
+                }
+                send(next, payload, timestamp, enqueuedAtNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void send(Pending pending, byte[] payload, long timestamp, long enqueuedAtNanos) {
+        MqttAsyncClient c = client;
+        if (c == null || !c.isConnected()) {
+            inflight.release();
+            requeueFirst(pending);
+            return;
+        }
+
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(pending.policy.qos);
+        message.setRetained(pending.policy.retained);
+        MqttProperties properties = null;
+        if (timestamp > 0) {
+            properties = new MqttProperties();
+            properties.setUserProperties(Collections.singletonList(
+                    new UserProperty("timestamp", String.valueOf(timestamp))));
+        }
+        long expiry = pending.policy.expirySeconds;
+        if (expiry > 0) {
+            // Count the time already spent queued or buffered offline against the expiry
+            long ageSeconds = timestamp > 0
+                    ? (System.currentTimeMillis() - timestamp) / 1000
+                    : TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - enqueuedAtNanos);
+            if (ageSeconds >= expiry) {
+                inflight.release();
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (properties == null) properties = new MqttProperties();
+            properties.setMessageExpiryInterval(expiry - ageSeconds);
+        }
+        if (pending.correlationData != null) {
+            if (properties == null) properties = new MqttProperties();
+            properties.setCorrelationData(pending.correlationData);
+        }
+        int alias = topicAlias(pending.topic);
+        if (alias > 0 && pending.policy.topicAlias) {
+            if (properties == null) properties = new MqttProperties();
+            properties.setTopicAlias(alias);
+        }
+        if (properties != null) message.setProperties(properties);
+
+        try {
+            c.publish(pending.topic, message, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    inflight.release();
+                    publishedCount.incrementAndGet();
+                    recordLatency(enqueuedAtNanos);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    inflight.release();
+                    failedCount.incrementAndGet();
+                    Log.e(TAG, "Failed to publish to " + pending.topic, exception);
+                }
+            });
+        } catch (MqttException e) {
+            inflight.release();
+            failedCount.incrementAndGet();
+            Log.e(TAG, "Failed to publish to " + pending.topic, e);
+        }
+    }
+
+    /**
+     * The alias Paho gives this topic on the current connection, 0 for none. Counted before the
+     * publish call: if Paho fails before taking an alias this count runs ahead of Paho's, and an
+     * alias set from it is replaced by Paho rather than sent for the wrong topic.
+     */
+    private int topicAlias(String topic) {
+        if (topicAliasesStale) {
+            topicAliasesStale = false;
+            connectionTopics.clear();
+        }
+        Integer alias = connectionTopics.get(topic);
+        if (alias != null) return alias;
+
+        int maximum = topicAliasMaximum;
+        int next = connectionTopics.size() + 1;
+        // Once the aliases are used up no later topic gets one, no need to remember them
+        if (maximum >= 0 && next > maximum) return 0;
+        alias = next <= maximum ? next : 0;
+        connectionTopics.put(topic, alias);
+        return alias;
+    }
+
+    private void requeueFirst(Pending pending) {
+        synchronized (queue) {
+            // A newer value for this slot was queued while we held this one, it wins
+            if (pending.queued) return;
+            pending.queued = true;
+            queue.addFirst(pending);
+        }
+    }
+
+    private void recordLatency(long enqueuedAtNanos) {
+        long latencyNanos = System.nanoTime() - enqueuedAtNanos;
+        latencyHistogram.record(latencyNanos / 1e6);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        lastLatencyMs = latencyMs;
+        // Exponentially weighted moving average, cheap enough to do per ack
+        avgLatencyMs = avgLatencyMs == 0 ? latencyMs : avgLatencyMs * 0.9 + latencyMs * 0.1;
+    }
+
+    private boolean isClientConnected() {
+        MqttAsyncClient c = client;
+        return c != null && c.isConnected();
+    }
+
+    /**
+     * @return free slots in the queue, used to pace replays so live messages still fit
+     */
+    public int getRemainingCapacity() {
+        synchronized (queue) {
+            return capacity - queue.size();
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getLastLatencyMs() {
+        return lastLatencyMs;
+    }
+
+    public double getAverageLatencyMs() {
+        return avgLatencyMs;
+    }
+
+    /**
+     * Enqueue to PUBACK latency of recent publishes.
+     */
+    public MetricsRegistry.Histogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        synchronized (queue) {
+            queue.clear();
+            slots.clear();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static com.stretter.shellyelevateservice.Constants.*;
+
+import com.stretter.shellyelevateservice.DeviceModel;
+import com.stretter.shellyelevateservice.helper.DeviceHelper;
+
+/**
+ * Every topic this device publishes to or listens on, resolved once for the current clientId.
+ *
+ * Hot paths look topics up here instead of running {@code "%s".replace(...)} per message.
+ * Relay topics are indexed by relay number (0 has no suffix, 1 is "_1", ...), button event
+ * topics by button number (1-based, index 0 unused).
+ */
+public final class MqttTopics {
+
+    public final String clientId;
+
+    public final String config;
+    public final String status;
+    public final String hello;
+    public final String update;
+    public final String state;
+    public final String diagnostics;
+
+    public final String temp;
+    public final String hum;
+    public final String lux;
+    public final String brightness;
+    public final String proximity;
+    public final String sleeping;
+    public final String unknownKey;
+
+    public final String sleep;
+    public final String wake;
+    public final String reboot;
+    public final String restartApp;
+
+    public final String subscription;
+
+    private final String[] relayState;
+    private final String[] relayCommand;
+    private final String[] buttonEvent;
+
+    public MqttTopics(String clientId, DeviceModel device) {
+        this.clientId = clientId;
+
+        config = resolve(MQTT_TOPIC_CONFIG_DEVICE);
+        status = resolve(MQTT_TOPIC_STATUS);
+        hello = resolve(MQTT_TOPIC_HELLO);
+        update = resolve(MQTT_TOPIC_UPDATE);
+        state = resolve(MQTT_TOPIC_STATE);
+        diagnostics = resolve(MQTT_TOPIC_DIAGNOSTICS);
+
+        temp = resolve(MQTT_TOPIC_TEMP_SENSOR);
+        hum = resolve(MQTT_TOPIC_HUM_SENSOR);
+        lux = resolve(MQTT_TOPIC_LUX_SENSOR);
+        brightness = resolve(MQTT_TOPIC_SCREEN_BRIGHTNESS);
+        proximity = resolve(MQTT_TOPIC_PROXIMITY_SENSOR);
+        sleeping = resolve(MQTT_TOPIC_SLEEPING_BINARY_SENSOR);
+        unknownKey = resolve(MQTT_TOPIC_UNKNOWN_KEY);
+
+        sleep = resolve(MQTT_TOPIC_SLEEP_BUTTON);
+        wake = resolve(MQTT_TOPIC_WAKE_BUTTON);
+        reboot = resolve(MQTT_TOPIC_REBOOT_BUTTON);
+        restartApp = resolve(MQTT_TOPIC_RESTART_APP_BUTTON);
+
+        subscription = "shellyelevateservice/" + clientId + "/#";
+
+        // Commands for every relay the hardware layer can drive, even if discovery only lists 'inputs'
+        int relays = Math.max(device.inputs, DeviceHelper.getRelayCount());
+        relayState = new String[relays];
+        relayCommand = new String[relays];
+        for (int num = 0; num < relays; num++) {
+            relayState[num] = resolve(MQTT_TOPIC_RELAY_STATE) + relaySuffix(num);
+            relayCommand[num] = resolve(MQTT_TOPIC_RELAY_COMMAND) + relaySuffix(num);
+        }
+
+        buttonEvent = new String[device.buttons + 1];
+        for (int i = 1; i <= device.buttons; i++) {
+            buttonEvent[i] = resolve(MQTT_TOPIC_BUTTON_EVENT) + "/" + i;
+        }
+    }
+
+    public static String relaySuffix(int num) {
+        return num > 0 ? ("_" + num) : "";
+    }
+
+    public int relayCount() {
+        return relayState.length;
+    }
+
+    public int buttonCount() {
+        return buttonEvent.length - 1;
+    }
+
+    /**
+     * @return the state topic, or null if the device has no such relay
+     */
+    public String relayState(int num) {
+        return num >= 0 && num < relayState.length ? relayState[num] : null;
+    }
+
+    public String relayCommand(int num) {
+        return num >= 0 && num < relayCommand.length ? relayCommand[num] : null;
+    }
+
+    /**
+     * @return the event topic, or null if the device has no such button
+     */
+    public String buttonEvent(int button) {
+        return button >= 1 && button < buttonEvent.length ? buttonEvent[button] : null;
+    }
+
+    private String resolve(String template) {
+        return template.replace("%s", clientId);
+    }
+}
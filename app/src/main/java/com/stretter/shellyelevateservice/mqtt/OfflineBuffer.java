@@ -0,0 +1,275 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File-backed buffer for publishes made while the broker is unreachable.
+ *
+ * The file is memory-mapped and written append-only, so a buffered button press survives
+ * an app restart without an fsync per record. Layout:
+ *
+ *   header:  int magic | int writePos
+ *   record:  byte flags | long timestamp | short topicLen | topic | int payloadLen | payload
+ *
+ * State (sensor) records are coalesced per topic: appending a new value marks the previous
+ * record for that topic dead. When the file is full, dead records are compacted away first,
+ * then the oldest state records are evicted, and only then the oldest events.
+ */
+public class OfflineBuffer {
+
+    private static final String TAG = "OfflineBuffer";
+
+    private static final int MAGIC = 0x53454f42; // "SEOB"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 1 + 8 + 2 + 4;
+
+    private static final byte FLAG_LIVE = 0x01;
+    private static final byte FLAG_STATE = 0x02;
+
+    public static final class Record {
+        public final String topic;
+        public final byte[] payload;
+        public final long timestamp;
+        public final boolean state;
+
+        Record(String topic, byte[] payload, long timestamp, boolean state) {
+            this.topic = topic;
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.state = state;
+        }
+    }
+
+    public interface Consumer {
+        /**
+         * @return false to stop replaying, the record and everything after it stays buffered
+         */
+        boolean accept(Record record);
+    }
+
+    private final int capacity;
+    private MappedByteBuffer buffer;
+    private int writePos;
+    private int liveCount;
+    private final Map<String, Integer> liveStateOffsets = new HashMap<>();
+
+    public OfflineBuffer(File file, int capacityBytes) {
+        this.capacity = Math.max(capacityBytes, 4096);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean resized = raf.length() != capacity;
+            raf.setLength(capacity);
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            if (resized || buffer.getInt(0) != MAGIC) {
+                reset();
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot map offline buffer " + file + ", buffering disabled", e);
+            buffer = null;
+        }
+    }
+
+    private void reset() {
+        buffer.putInt(0, MAGIC);
+        setWritePos(HEADER_SIZE);
+        liveCount = 0;
+        liveStateOffsets.clear();
+    }
+
+    private void setWritePos(int pos) {
+        writePos = pos;
+        buffer.putInt(4, pos);
+    }
+
+    // Rebuild the in-memory index from what a previous process left behind
+    private void load() {
+        int end = buffer.getInt(4);
+        if (end < HEADER_SIZE || end > capacity) {
+            reset();
+            return;
+        }
+        writePos = end;
+        liveCount = 0;
+        int pos = HEADER_SIZE;
+        while (pos < end) {
+            byte flags = buffer.get(pos);
+            int len = recordLength(pos);
+            if (len <= 0 || pos + len > end) {
+                // Torn write at the tail, drop it
+                setWritePos(pos);
+                break;
+            }
+            if ((flags & FLAG_LIVE) != 0) {
+                liveCount++;
+                if ((flags & FLAG_STATE) != 0) liveStateOffsets.put(readTopic(pos), pos);
+            }
+            pos += len;
+        }
+        if (liveCount > 0) Log.i(TAG, "Recovered " + liveCount + " buffered messages");
+    }
+
+    public synchronized boolean isAvailable() {
+        return buffer != null;
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Buffer a message. State messages replace any earlier buffered value for the same topic.
+     */
+    public synchronized void append(String topic, byte[] payload, boolean state, long timestamp) {
+        if (buffer == null) return;
+
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int len = RECORD_OVERHEAD + topicBytes.length + payload.length;
+        if (HEADER_SIZE + len > capacity) {
+            Log.w(TAG, "Message for " + topic + " larger than buffer, dropping");
+            return;
+        }
+
+        if (state) {
+            Integer previous = liveStateOffsets.remove(topic);
+            if (previous != null) markDead(previous);
+        }
+
+        if (writePos + len > capacity) {
+            compact(len);
+        }
+
+        int pos = writePos;
+        buffer.put(pos, (byte) (FLAG_LIVE | (state ? FLAG_STATE : 0)));
+        buffer.putLong(pos + 1, timestamp);
+        buffer.putShort(pos + 9, (short) topicBytes.length);
+        buffer.position(pos + 11);
+        buffer.put(topicBytes);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        // Publish the record only after its body is written
+        setWritePos(pos + len);
+
+        liveCount++;
+        if (state) liveStateOffsets.put(topic, pos);
+    }
+
+    /**
+     * Replay buffered messages oldest first. Accepted records are removed from the buffer.
+     *
+     * @return number of records handed to the consumer
+     */
+    public synchronized int replay(Consumer consumer) {
+        if (buffer == null || liveCount == 0) return 0;
+
+        List<Record> records = readLiveRecords();
+        int accepted = 0;
+        for (Record record : records) {
+            if (!consumer.accept(record)) break;
+            accepted++;
+        }
+
+        rewrite(records.subList(accepted, records.size()));
+        return accepted;
+    }
+
+    private void markDead(int pos) {
+        byte flags = buffer.get(pos);
+        buffer.put(pos, (byte) (flags & ~FLAG_LIVE));
+        liveCount--;
+    }
+
+    // Make room for a record of the given length: drop dead records, then stale state, then events
+    private void compact(int needed) {
+        List<Record> records = readLiveRecords();
+        int free = capacity - HEADER_SIZE - totalLength(records);
+
+        int evictedState = 0;
+        for (int i = 0; i < records.size() && free < needed; ) {
+            if (records.get(i).state) {
+                free += recordLength(records.remove(i));
+                evictedState++;
+            } else {
+                i++;
+            }
+        }
+        int evictedEvents = 0;
+        while (!records.isEmpty() && free < needed) {
+            free += recordLength(records.remove(0));
+            evictedEvents++;
+        }
+        if (evictedState > 0 || evictedEvents > 0) {
+            Log.w(TAG, "Offline buffer full, evicted " + evictedState + " sensor values and " + evictedEvents + " events");
+        }
+
+        rewrite(records);
+    }
+
+    private void rewrite(List<Record> records) {
+        // Copy out first, rewriting in place could overwrite records not read yet
+        List<Record> copy = new ArrayList<>(records);
+        reset();
+        for (Record record : copy) {
+            append(record.topic, record.payload, record.state, record.timestamp);
+        }
+    }
+
+    private List<Record> readLiveRecords() {
+        List<Record> records = new ArrayList<>(liveCount);
+        int pos = HEADER_SIZE;
+        while (pos < writePos) {
+            byte flags = buffer.get(pos);
+            if ((flags & FLAG_LIVE) != 0) {
+                long timestamp = buffer.getLong(pos + 1);
+                String topic = readTopic(pos);
+                int topicLen = buffer.getShort(pos + 9);
+                int payloadLen = buffer.getInt(pos + 11 + topicLen);
+                byte[] payload = new byte[payloadLen];
+                buffer.position(pos + 15 + topicLen);
+                buffer.get(payload);
+                records.add(new Record(topic, payload, timestamp, (flags & FLAG_STATE) != 0));
+            }
+            pos += recordLength(pos);
+        }
+        return records;
+    }
+
+    private String readTopic(int pos) {
+        int topicLen = buffer.getShort(pos + 9);
+        byte[] topic = new byte[topicLen];
+        buffer.position(pos + 11);
+        buffer.get(topic);
+        return new String(topic, StandardCharsets.UTF_8);
+    }
+
+    private int recordLength(int pos) {
+        if (pos + RECORD_OVERHEAD > capacity) return -1;
+        int topicLen = buffer.getShort(pos + 9);
+        if (topicLen < 0 || pos + 15 + topicLen > capacity) return -1;
+        int payloadLen = buffer.getInt(pos + 11 + topicLen);
+        if (payloadLen < 0) return -1;
+        return RECORD_OVERHEAD + topicLen + payloadLen;
+    }
+
+    private static int recordLength(Record record) {
+        return RECORD_OVERHEAD + record.topic.getBytes(StandardCharsets.UTF_8).length + record.payload.length;
+    }
+
+    private static int totalLength(List<Record> records) {
+        int total = 0;
+        for (Record record : records) total += recordLength(record);
+        return total;
+    }
+}
@@ -0,0 +1,93 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats MQTT payloads into caller-provided byte buffers without going through String.
+ *
+ * Numbers are written with at most {@code maxDecimals} fraction digits, trailing zeros
+ * trimmed but at least one kept ("21.3", "45.0", "123.45"), which matches what
+ * {@code String.valueOf(float)} produced for our sensor values before.
+ */
+public final class PayloadEncoder {
+
+    public static final int MAX_NUMBER_LENGTH = 32;
+    private static final int MAX_DECIMALS = 6;
+    // Above this the scaled value would overflow a long, sensors never get there
+    private static final double MAX_FAST_VALUE = 1e12;
+
+    public static final byte[] ON = {'O', 'N'};
+    public static final byte[] OFF = {'O', 'F', 'F'};
+
+    private static final long[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private PayloadEncoder() {}
+
+    public static byte[] onOff(boolean state) {
+        return state ? ON : OFF;
+    }
+
+    /**
+     * Write {@code value} into {@code dst} starting at {@code offset}.
+     *
+     * @return number of bytes written, at most {@link #MAX_NUMBER_LENGTH}
+     */
+    public static int encodeNumber(double value, int maxDecimals, byte[] dst, int offset) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_FAST_VALUE) {
+            // Not a sensor reading we expect, take the slow path
+            byte[] slow = String.valueOf(value).getBytes(StandardCharsets.US_ASCII);
+            int len = Math.min(slow.length, MAX_NUMBER_LENGTH);
+            System.arraycopy(slow, 0, dst, offset, len);
+            return len;
+        }
+
+        int decimals = Math.max(0, Math.min(maxDecimals, MAX_DECIMALS));
+        long scaled = Math.round(Math.abs(value) * POW10[decimals]);
+        int pos = offset;
+
+        if (value < 0 && scaled != 0) dst[pos++] = '-';
+
+        long integerPart = scaled / POW10[decimals];
+        long fraction = scaled % POW10[decimals];
+        pos = writeLong(integerPart, dst, pos);
+
+        if (decimals > 0) {
+            dst[pos++] = '.';
+            // Drop trailing zeros of the fraction, keep at least one digit
+            int digits = decimals;
+            while (digits > 1 && fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            for (int i = digits - 1; i >= 0; i--) {
+                dst[pos + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += digits;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Convenience for the slow paths (offline buffer, logging), allocates a String.
+     */
+    public static String formatNumber(double value, int maxDecimals) {
+        byte[] buf = new byte[MAX_NUMBER_LENGTH];
+        int len = encodeNumber(value, maxDecimals, buf, 0);
+        return new String(buf, 0, len, StandardCharsets.US_ASCII);
+    }
+
+    private static int writeLong(long value, byte[] dst, int pos) {
+        if (value == 0) {
+            dst[pos] = '0';
+            return pos + 1;
+        }
+        int digits = 0;
+        for (long v = value; v > 0; v /= 10) digits++;
+        for (int i = digits - 1; i >= 0; i--) {
+            dst[pos + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
@@ -0,0 +1,200 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decides when a sensor reading is worth publishing.
+ *
+ * Every sensor has a rule made of:
+ * - a deadband: absolute ({@code delta}) and/or relative ({@code deltaPct}) change since the
+ *   last reported value; with both at 0 any change counts
+ * - a minimum interval: significant changes arriving faster are held back and the latest
+ *   one is reported once the interval has passed
+ * - a maximum interval: the last value is re-reported as a heartbeat when nothing else was
+ *   sent for that long (0 disables the heartbeat)
+ *
+ * Rules are read from SharedPreferences ("report" + sensor key + "Delta" / "DeltaPct" /
+ * "MinIntervalMs" / "MaxIntervalMs").
+ */
+public class ReportingPolicy {
+
+    public enum Sensor {
+        TEMP("Temp", 0.2, 0, 10_000, 300_000),
+        HUM("Hum", 1, 0, 10_000, 300_000),
+        LUX("Lux", 0, 4, 1_000, 300_000),
+        PROXIMITY("Proximity", 0, 0, 250, 300_000);
+
+        public final String key;
+        final double defaultDelta;
+        final double defaultDeltaPct;
+        final long defaultMinIntervalMs;
+        final long defaultMaxIntervalMs;
+
+        Sensor(String key, double defaultDelta, double defaultDeltaPct, long defaultMinIntervalMs, long defaultMaxIntervalMs) {
+            this.key = key;
+            this.defaultDelta = defaultDelta;
+            this.defaultDeltaPct = defaultDeltaPct;
+            this.defaultMinIntervalMs = defaultMinIntervalMs;
+            this.defaultMaxIntervalMs = defaultMaxIntervalMs;
+        }
+
+        public String deltaKey() {
+            return "report" + key + "Delta";
+        }
+
+        public String deltaPctKey() {
+            return "report" + key + "DeltaPct";
+        }
+
+        public String minIntervalKey() {
+            return "report" + key + "MinIntervalMs";
+        }
+
+        public String maxIntervalKey() {
+            return "report" + key + "MaxIntervalMs";
+        }
+    }
+
+    public interface Reporter {
+        void report(Sensor sensor, double value);
+    }
+
+    private static final class Tracker {
+        double delta;
+        double deltaPct;
+        long minIntervalMs;
+        long maxIntervalMs;
+
+        boolean hasReported;
+        double lastReported;
+        long lastReportTime;
+
+        boolean hasPending;
+        double pending;
+    }
+
+    private final Map<Sensor, Tracker> trackers = new EnumMap<>(Sensor.class);
+
+    public ReportingPolicy() {
+        for (Sensor sensor : Sensor.values()) {
+            Tracker t = new Tracker();
+            t.delta = sensor.defaultDelta;
+            t.deltaPct = sensor.defaultDeltaPct;
+            t.minIntervalMs = sensor.defaultMinIntervalMs;
+            t.maxIntervalMs = sensor.defaultMaxIntervalMs;
+            trackers.put(sensor, t);
+        }
+    }
+
+    public synchronized void load(SharedPreferences prefs) {
+        Map<String, ?> all = prefs.getAll();
+        for (Sensor sensor : Sensor.values()) {
+            Tracker t = trackers.get(sensor);
+            t.delta = Math.max(0, readNumber(all, sensor.deltaKey(), sensor.defaultDelta));
+            t.deltaPct = Math.max(0, readNumber(all, sensor.deltaPctKey(), sensor.defaultDeltaPct));
+            t.minIntervalMs = Math.max(0, (long) readNumber(all, sensor.minIntervalKey(), sensor.defaultMinIntervalMs));
+            t.maxIntervalMs = Math.max(0, (long) readNumber(all, sensor.maxIntervalKey(), sensor.defaultMaxIntervalMs));
+        }
+    }
+
+    // Settings arrive as Integer, Long or Float depending on what the JSON looked like
+    private static double readNumber(Map<String, ?> all, String key, double defaultValue) {
+        Object value = all.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * Offer a new reading.
+     *
+     * @return true if it should be published now; the value is then recorded as reported
+     */
+    public synchronized boolean offer(Sensor sensor, double value, long nowMs) {
+        Tracker t = trackers.get(sensor);
+
+        if (t.hasReported && !isSignificant(t, value)) {
+            // Back inside the deadband, a held-back change is no longer worth sending
+            t.hasPending = false;
+            return false;
+        }
+
+        if (t.hasReported && nowMs - t.lastReportTime < t.minIntervalMs) {
+            t.hasPending = true;
+            t.pending = value;
+            return false;
+        }
+
+        record(t, value, nowMs);
+        return true;
+    }
+
+    /**
+     * Record a value that was published outside the policy, e.g. the full state after connect.
+     */
+    public synchronized void markReported(Sensor sensor, double value, long nowMs) {
+        record(trackers.get(sensor), value, nowMs);
+    }
+
+    /**
+     * Flush held-back changes whose minimum interval has passed and send heartbeats.
+     * Call periodically, about once a second is plenty.
+     */
+    public void tick(long nowMs, Reporter reporter) {
+        for (Sensor sensor : Sensor.values()) {
+            double value;
+            synchronized (this) {
+                Tracker t = trackers.get(sensor);
+                if (!t.hasReported) continue;
+
+                if (t.hasPending && nowMs - t.lastReportTime >= t.minIntervalMs) {
+                    value = t.pending;
+                } else if (t.maxIntervalMs > 0 && nowMs - t.lastReportTime >= t.maxIntervalMs) {
+                    value = t.lastReported;
+                } else {
+                    continue;
+                }
+                record(t, value, nowMs);
+            }
+            reporter.report(sensor, value);
+        }
+    }
+
+    private static boolean isSignificant(Tracker t, double value) {
+        double diff = Math.abs(value - t.lastReported);
+        if (diff == 0) return false;
+        if (t.delta == 0 && t.deltaPct == 0) return true;
+        if (t.delta > 0 && diff >= t.delta) return true;
+        // Any change away from 0 is an infinite relative change
+        return t.deltaPct > 0 && (t.lastReported == 0 || diff / Math.abs(t.lastReported) * 100.0 >= t.deltaPct);
+    }
+
+    private static void record(Tracker t, double value, long nowMs) {
+        t.hasReported = true;
+        t.lastReported = value;
+        t.lastReportTime = nowMs;
+        t.hasPending = false;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Sensor sensor : Sensor.values()) {
+            Tracker t = trackers.get(sensor);
+            JSONObject rule = new JSONObject();
+            rule.put("delta", t.delta);
+            rule.put("deltaPct", t.deltaPct);
+            rule.put("minIntervalMs", t.minIntervalMs);
+            rule.put("maxIntervalMs", t.maxIntervalMs);
+            if (t.hasReported) {
+                rule.put("lastReported", t.lastReported);
+                rule.put("lastReportTime", t.lastReportTime);
+            }
+            json.put(sensor.key.toLowerCase(), rule);
+        }
+        return json;
+    }
+}
@@ -1,6 +1,7 @@
 package com.stretter.shellyelevateservice.mqtt;
 
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mApplicationContext;
+import static com.stretter.shellyelevateservice.ShellyElevateApplication.mCommandExecutor;
 import static com.stretter.shellyelevateservice.Constants.*;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mDeviceHelper;
 import static com.stretter.shellyelevateservice.ShellyElevateApplication.mMQTTServer;
@@ -20,10 +21,80 @@ import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.stretter.shellyelevateservice.ShellyElevateApplication;
+import com.stretter.shellyelevateservice.helper.CommandExecutor.Lane;
+import com.stretter.shellyelevateservice.helper.JsonWriter;
 
 public class ShellyElevateMQTTCallback implements MqttCallback {
+
+    private static final int MAX_TRACKED_UNKNOWN_TOPICS = 32;
+
+    /**
+     * Handles one inbound command topic.
+     */
+    public interface CommandHandler {
+        void handle(MqttMessage message);
+    }
+
+    private static final CommandHandler IGNORE = message -> {};
+
+    // Exact topic -> handler, built once so dispatch is a single hash lookup
+    private final Map<String, CommandHandler> handlers = new HashMap<>();
+    private final AtomicLong unknownTopicCount = new AtomicLong();
+    private final Map<String, AtomicLong> unknownTopics = new ConcurrentHashMap<>();
+
+    public ShellyElevateMQTTCallback(MqttTopics topics) {
+        // Commands only enqueue on the command executor, the Paho callback thread must not block
+        handlers.put(topics.update, queued(Lane.DIAGNOSTICS, "update", message -> mMQTTServer.publishStatus()));
+
+        for (int num = 0; num < topics.relayCount(); num++) {
+            int relay = num;
+            handlers.put(topics.relayCommand(num), queued(Lane.CONTROL, "relay", message -> mDeviceHelper.setRelay(relay, isOn(message))));
+        }
+
+        // Broadcast to ShellyElevateService to dim / wake the screen
+        handlers.put(topics.sleep, queued(Lane.CONTROL, "sleep", message -> broadcast(INTENT_SCREEN_SAVER_STARTED)));
+        handlers.put(topics.wake, queued(Lane.CONTROL, "wake", message -> broadcast(INTENT_SCREEN_SAVER_STOPPED)));
+        handlers.put(topics.reboot, queued(Lane.DIAGNOSTICS, "reboot", message -> reboot()));
+        handlers.put(topics.restartApp, queued(Lane.DIAGNOSTICS, "restartApp", message -> {
+            // Broadcast to ShellyElevateService to kill and restart the watchdog app
+            Log.i("MQTT", "Restart app command received");
+            broadcast(INTENT_RESTART_APP);
+        }));
+
+        handlers.put(MQTT_TOPIC_HOME_ASSISTANT_STATUS, message -> {
+            // Birth message: Home Assistant restarted, it needs discovery and state again.
+            // Only schedules a jittered republish, cheap enough for the callback thread.
+            if ("online".equals(new String(message.getPayload(), StandardCharsets.UTF_8))) {
+                mMQTTServer.onHomeAssistantOnline();
+            }
+        });
+
+        // Our own publishes come back through the wildcard subscription
+        handlers.put(topics.status, IGNORE);
+        handlers.put(topics.hello, IGNORE);
+        handlers.put(topics.state, IGNORE);
+        handlers.put(topics.diagnostics, IGNORE);
+        handlers.put(topics.temp, IGNORE);
+        handlers.put(topics.hum, IGNORE);
+        handlers.put(topics.lux, IGNORE);
+        handlers.put(topics.brightness, IGNORE);
+        handlers.put(topics.proximity, IGNORE);
+        handlers.put(topics.sleeping, IGNORE);
+        handlers.put(topics.unknownKey, IGNORE);
+        for (int num = 0; num < topics.relayCount(); num++) {
+            handlers.put(topics.relayState(num), IGNORE);
+        }
+        for (int button = 1; button <= topics.buttonCount(); button++) {
+            handlers.put(topics.buttonEvent(button), IGNORE);
+        }
+    }
+
     @Override
     public void disconnected(MqttDisconnectResponse disconnectResponse) {
         Log.i("MQTT", "Disconnected");
@@ -37,45 +108,100 @@ public class ShellyElevateMQTTCallback implements MqttCallback {
 
     @Override
     public void messageArrived(String topic, MqttMessage message) {
-        switch (topic.replace(mMQTTServer.getClientId(), "%s")) {
-            case MQTT_TOPIC_UPDATE:
-	            mMQTTServer.publishStatus();
-	            break;
-            case MQTT_TOPIC_RELAY_COMMAND:
-                mDeviceHelper.setRelay(0, new String(message.getPayload(), StandardCharsets.UTF_8).contains("ON"));
-                break;
-            case MQTT_TOPIC_RELAY_COMMAND + "_1":
-                mDeviceHelper.setRelay(1, new String(message.getPayload(), StandardCharsets.UTF_8).contains("ON"));
-                break;
-            case MQTT_TOPIC_SLEEP_BUTTON:
-                // Broadcast to ShellyElevateService to dim screen
-                Intent sleepIntent = new Intent(INTENT_SCREEN_SAVER_STARTED);
-                LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(sleepIntent);
-                break;
-            case MQTT_TOPIC_WAKE_BUTTON:
-                // Broadcast to ShellyElevateService to wake screen
-                Intent wakeIntent = new Intent(INTENT_SCREEN_SAVER_STOPPED);
-                LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(wakeIntent);
-                break;
-            case MQTT_TOPIC_REBOOT_BUTTON:
-                long deltaTime = System.currentTimeMillis() - ShellyElevateApplication.getApplicationStartTime();
-                deltaTime /= 1000;
-                if (deltaTime > 20) {
-                    try {
-                        Runtime.getRuntime().exec("reboot");
-                    } catch (IOException e) {
-                        Log.e("MQTT", "Error rebooting:", e);
-                    }
-                } else {
-                    Toast.makeText(mApplicationContext, "Please wait %s seconds before rebooting".replace("%s",String.valueOf(20-deltaTime) ), Toast.LENGTH_LONG).show();
+        CommandHandler handler = handlers.get(topic);
+        if (handler == null) {
+            onUnknownTopic(topic);
+            return;
+        }
+        handler.handle(message);
+    }
+
+    private void onUnknownTopic(String topic) {
+        unknownTopicCount.incrementAndGet();
+        AtomicLong counter = unknownTopics.get(topic);
+        if (counter == null && unknownTopics.size() < MAX_TRACKED_UNKNOWN_TOPICS) {
+            counter = unknownTopics.computeIfAbsent(topic, t -> new AtomicLong());
+            Log.w("MQTT", "Message on unhandled topic: " + topic);
+        }
+        if (counter != null) counter.incrementAndGet();
+    }
+
+    public long getUnknownTopicCount() {
+        return unknownTopicCount.get();
+    }
+
+    /**
+     * @return per-topic counts for the first {@value #MAX_TRACKED_UNKNOWN_TOPICS} unknown topics seen
+     */
+    public Map<String, Long> getUnknownTopics() {
+        Map<String, Long> snapshot = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : unknownTopics.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    private static CommandHandler queued(Lane lane, String name, CommandHandler handler) {
+        return message -> {
+            long receivedAt = System.currentTimeMillis();
+            long receivedNanos = System.nanoTime();
+            boolean accepted = mCommandExecutor.execute(lane, name, () -> {
+                long start = System.nanoTime();
+                try {
+                    handler.handle(message);
+                } catch (RuntimeException e) {
+                    respond(name, message, receivedAt, start - receivedNanos, System.nanoTime() - start, e.toString());
+                    throw e;
                 }
-                break;
-            case MQTT_TOPIC_RESTART_APP_BUTTON:
-                // Broadcast to ShellyElevateService to kill and restart the watchdog app
-                Log.i("MQTT", "Restart app command received");
-                Intent restartIntent = new Intent(INTENT_RESTART_APP);
-                LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(restartIntent);
-                break;
+                respond(name, message, receivedAt, start - receivedNanos, System.nanoTime() - start, null);
+            });
+            if (!accepted) {
+                Log.w("MQTT", "Dropped " + name + " command, executor is overloaded");
+                respond(name, message, receivedAt, 0, 0, "Rejected, too many pending commands");
+            }
+        };
+    }
+
+    /**
+     * If the command was an MQTT 5 request (it carries a response topic), publish the result
+     * with the correlation data it came with. executionMs is the time spent in the handler,
+     * for relays that is the sysfs write.
+     */
+    private static void respond(String name, MqttMessage message, long receivedAt, long queuedNanos, long executionNanos, String error) {
+        MqttProperties properties = message.getProperties();
+        if (properties == null || properties.getResponseTopic() == null) return;
+
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("command").value(name)
+                .name("success").value(error == null);
+        if (error != null) json.name("error").value(error);
+        json.name("received").value(receivedAt)
+                .name("executed").value(System.currentTimeMillis())
+                .name("queueMs").value(queuedNanos / 1e6)
+                .name("executionMs").value(executionNanos / 1e6)
+                .endObject();
+        mMQTTServer.publishResponse(properties.getResponseTopic(), json.toByteArray(), properties.getCorrelationData());
+    }
+
+    private static boolean isOn(MqttMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8).contains("ON");
+    }
+
+    private static void broadcast(String action) {
+        LocalBroadcastManager.getInstance(mApplicationContext).sendBroadcast(new Intent(action));
+    }
+
+    private static void reboot() {
+        long deltaTime = System.currentTimeMillis() - ShellyElevateApplication.getApplicationStartTime();
+        deltaTime /= 1000;
+        if (deltaTime > 20) {
+            try {
+                Runtime.getRuntime().exec("reboot");
+            } catch (IOException e) {
+                Log.e("MQTT", "Error rebooting:", e);
+            }
+        } else {
+            Toast.makeText(mApplicationContext, "Please wait %s seconds before rebooting".replace("%s",String.valueOf(20-deltaTime) ), Toast.LENGTH_LONG).show();
         }
     }
 
@@ -0,0 +1,51 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest value of every state field, published as one JSON object on the consolidated state
+ * topic instead of one message per sensor.
+ *
+ * Values are kept pre-encoded as JSON literals; the document is only serialized when a
+ * field was updated since the last {@link #takeIfDirty()}.
+ */
+public class StateDocument {
+
+    private final Map<String, String> fields = new LinkedHashMap<>();
+    private boolean dirty;
+
+    public synchronized void putNumber(String field, double value, int maxDecimals) {
+        fields.put(field, PayloadEncoder.formatNumber(value, maxDecimals));
+        // Re-reports of an unchanged value are heartbeats, they still go out
+        dirty = true;
+    }
+
+    public synchronized void putOnOff(String field, boolean on) {
+        fields.put(field, on ? "\"ON\"" : "\"OFF\"");
+        dirty = true;
+    }
+
+    /**
+     * @return the serialized document, or null if nothing changed since the last call
+     */
+    public synchronized byte[] takeIfDirty() {
+        if (!dirty) return null;
+        dirty = false;
+
+        StringBuilder json = new StringBuilder(16 * fields.size() + 2);
+        json.append('{');
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (json.length() > 1) json.append(',');
+            json.append('"').append(field.getKey()).append("\":").append(field.getValue());
+        }
+        json.append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public synchronized void clear() {
+        fields.clear();
+        dirty = false;
+    }
+}
@@ -0,0 +1,35 @@
+package com.stretter.shellyelevateservice;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, from the JVM's per-thread allocation counter.
+ * Only HotSpot based JVMs have that counter, tests check {@link #isSupported()} first.
+ */
+public final class AllocationMeter {
+
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private AllocationMeter() {}
+
+    public static boolean isSupported() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+    }
+
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Run the action the given number of times after a warm-up, so the JIT has compiled it.
+     *
+     * @return bytes allocated per run
+     */
+    public static double bytesPerRun(int runs, Runnable action) {
+        for (int i = 0; i < runs; i++) action.run();
+        long before = allocatedBytes();
+        for (int i = 0; i < runs; i++) action.run();
+        return (double) (allocatedBytes() - before) / runs;
+    }
+}
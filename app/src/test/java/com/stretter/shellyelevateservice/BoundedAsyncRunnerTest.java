@@ -0,0 +1,98 @@
+package com.stretter.shellyelevateservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class BoundedAsyncRunnerTest {
+
+    private final BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 4);
+    // Client handlers are inner classes of the server, it is never started
+    private final NanoHTTPD server = new NanoHTTPD(0) {
+    };
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+    }
+
+    @Test
+    public void closeAllClosesQueuedConnections() throws Exception {
+        Connection busy = new Connection(false);
+        Connection waiting = new Connection(false);
+        runner.exec(busy);
+        assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+        runner.exec(waiting);
+        assertEquals(1, runner.getQueuedConnections());
+
+        runner.closeAll();
+
+        assertTrue(busy.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(waiting.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runner.getQueuedConnections());
+        // The worker skips the closed connection instead of running it
+        assertFalse(waiting.started.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void queuedConnectionTakesTheWorkerOfAnIdleOne() throws Exception {
+        Connection idle = new Connection(true);
+        Connection next = new Connection(false);
+        runner.exec(idle);
+        assertTrue(idle.started.await(5, TimeUnit.SECONDS));
+
+        runner.exec(next);
+
+        assertTrue(idle.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(next.started.await(5, TimeUnit.SECONDS));
+        next.close();
+    }
+
+    /**
+     * Holds its worker until closed, like a connection blocked in a socket read.
+     */
+    private class Connection extends NanoHTTPD.ClientHandler implements BoundedAsyncRunner.Rejectable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        private final boolean idle;
+
+        Connection(boolean idle) {
+            server.super(null, null);
+            this.idle = idle;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            runner.closed(this);
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        @Override
+        public void reject() {
+            close();
+        }
+
+        @Override
+        public boolean isIdle() {
+            return idle;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.stretter.shellyelevateservice.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.stretter.shellyelevateservice.AllocationMeter;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The per-sample sensor path of {@link EventStream#publishSensor} with no stream client
+ * connected, which is how it runs on most devices. Every sample is a change, so the state
+ * version and the stored state are updated each time.
+ */
+public class EventStreamAllocationTest {
+
+    private static final int RUNS = 200_000;
+    private static final String[] SENSORS = {"temp", "hum", "lux"};
+
+    private final EventStream stream = new EventStream();
+    private int counter;
+
+    private void publishNext() {
+        int i = counter++;
+        stream.publishSensor(SENSORS[i % SENSORS.length], 20 + (i % 100) / 10.0);
+    }
+
+    @Test
+    public void publishSensorDoesNotAllocateOnceSeen() {
+        assumeTrue(AllocationMeter.isSupported());
+
+        long versionBefore = stream.getStateVersion();
+        double bytesPerSample = AllocationMeter.bytesPerRun(RUNS, this::publishNext);
+
+        assertTrue("Allocated " + bytesPerSample + " bytes per sample", bytesPerSample < 1);
+        assertEquals(versionBefore + 2L * RUNS, stream.getStateVersion());
+    }
+
+    @Test
+    public void newClientStartsFromTheLatestSample() throws Exception {
+        stream.publishSensor("temp", 21.5);
+        stream.publishSensor("temp", 22.25);
+        stream.publishSensor("temp", 22.25);
+
+        EventStream.Subscriber subscriber = stream.subscribe(1);
+        assertNotNull(subscriber);
+        byte[] buffer = new byte[256];
+        int n = subscriber.read(buffer, 0, buffer.length);
+        String frame = new String(buffer, 0, n, StandardCharsets.UTF_8);
+        subscriber.close();
+
+        assertTrue(frame, frame.startsWith("id: 2\nevent: sensor\ndata: {"));
+        assertTrue(frame, frame.contains("\"value\":22.25"));
+        assertTrue(frame, frame.endsWith("}\n\n"));
+    }
+}
@@ -0,0 +1,133 @@
+package com.stretter.shellyelevateservice.helper;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.stretter.shellyelevateservice.AllocationMeter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bytes allocated per response body, the previous JSONObject path against {@link JsonWriter}.
+ * The JSONObject side builds the tree, serializes it and encodes it to UTF-8, as NanoHTTPD did
+ * with a String body. The JsonWriter side writes into the thread's writer and wraps the buffer
+ * in a stream, as HttpServer.jsonResponse does.
+ */
+public class JsonWriterAllocationTest {
+
+    private static final int RUNS = 50_000;
+
+    private double reading = 21.5;
+
+    // GET /device/getTemperature
+    private byte[] sensorWithJsonObject() {
+        JSONObject json = new JSONObject();
+        json.put("success", true);
+        json.put("temperature", nextReading());
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private JsonWriter sensorWithJsonWriter() {
+        JsonWriter json = JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name("temperature").value(nextReading())
+                .endObject();
+        return json;
+    }
+
+    // GET /device/state
+    private byte[] stateWithJsonObject() {
+        JSONObject state = new JSONObject();
+        state.put("temp", nextReading());
+        state.put("hum", 41.5);
+        state.put("lux", 120.25);
+        state.put("proximity", 3.5);
+        JSONObject relays = new JSONObject();
+        relays.put("0", true);
+        relays.put("1", false);
+        state.put("relays", relays);
+        state.put("sleeping", false);
+        JSONObject json = new JSONObject();
+        json.put("success", true);
+        json.put("version", 1_700_000_000_123L);
+        json.put("state", state);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private JsonWriter stateWithJsonWriter() {
+        JsonWriter json = JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name("version").value(1_700_000_000_123L)
+                .name("state").beginObject()
+                .name("temp").value(nextReading())
+                .name("hum").value(41.5)
+                .name("lux").value(120.25)
+                .name("proximity").value(3.5)
+                .name("relays").beginObject().name("0").value(true).name("1").value(false).endObject()
+                .name("sleeping").value(false)
+                .endObject()
+                .endObject();
+        return json;
+    }
+
+    // MQTT command response with a list, like ShellyElevateMQTTCallback.respond
+    private byte[] responseWithJsonObject() {
+        JSONObject json = new JSONObject();
+        json.put("success", true);
+        json.put("command", "relay");
+        JSONArray timings = new JSONArray();
+        timings.put(nextReading());
+        timings.put(1.25);
+        json.put("timings", timings);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private JsonWriter responseWithJsonWriter() {
+        JsonWriter json = JsonWriter.forThread().beginObject()
+                .name("success").value(true)
+                .name("command").value("relay")
+                .name("timings").beginArray().value(nextReading()).value(1.25).endArray()
+                .endObject();
+        return json;
+    }
+
+    private double nextReading() {
+        reading = reading >= 30 ? 20.5 : reading + 0.25;
+        return reading;
+    }
+
+    private static void compare(String name, Runnable jsonObject, Runnable jsonWriter, Runnable jsonWriterResponse) {
+        double before = AllocationMeter.bytesPerRun(RUNS, jsonObject);
+        double after = AllocationMeter.bytesPerRun(RUNS, jsonWriter);
+        double afterResponse = AllocationMeter.bytesPerRun(RUNS, jsonWriterResponse);
+
+        assertTrue(name + ": JsonWriter allocated " + after + " bytes per body", after < 1);
+        assertTrue(name + ": response stream allocated " + afterResponse + " bytes, JSONObject " + before,
+                afterResponse < before / 10);
+    }
+
+    @Test
+    public void sensorValue() {
+        assumeTrue(AllocationMeter.isSupported());
+        compare("sensor", this::sensorWithJsonObject, this::sensorWithJsonWriter,
+                () -> sensorWithJsonWriter().toInputStream());
+    }
+
+    @Test
+    public void stateSnapshot() {
+        assumeTrue(AllocationMeter.isSupported());
+        compare("state", this::stateWithJsonObject, this::stateWithJsonWriter,
+                () -> stateWithJsonWriter().toInputStream());
+    }
+
+    @Test
+    public void commandResponse() {
+        assumeTrue(AllocationMeter.isSupported());
+        compare("response", this::responseWithJsonObject, this::responseWithJsonWriter,
+                () -> responseWithJsonWriter().toInputStream());
+    }
+}
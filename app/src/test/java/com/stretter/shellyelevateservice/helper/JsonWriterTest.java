@@ -0,0 +1,168 @@
+package com.stretter.shellyelevateservice.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class JsonWriterTest {
+
+    private static String string(String value) {
+        return new JsonWriter().value(value).toString();
+    }
+
+    private static String number(double value) {
+        return new JsonWriter().value(value).toString();
+    }
+
+    @Test
+    public void commasBetweenMembersAndElements() {
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("a").value(1)
+                .name("b").beginObject().name("c").value(true).endObject()
+                .name("d").beginArray().value(1).value(2).beginObject().name("e").nullValue().endObject().endArray()
+                .name("f").beginArray().endArray()
+                .name("g").beginObject().endObject()
+                .endObject();
+
+        assertEquals("{\"a\":1,\"b\":{\"c\":true},\"d\":[1,2,{\"e\":null}],\"f\":[],\"g\":{}}", json.toString());
+    }
+
+    @Test
+    public void deepNestingGrowsTheLevelStack() {
+        JsonWriter json = new JsonWriter();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            json.beginArray().value(i);
+            expected.append(i == 0 ? "[" : ",[").append(i);
+        }
+        for (int i = 0; i < 20; i++) {
+            json.endArray();
+            expected.append(']');
+        }
+
+        assertEquals(expected.toString(), json.toString());
+    }
+
+    @Test
+    public void rawValueTakesAMemberSlot() {
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("a").rawValue("{\"x\":[1]}")
+                .name("b").value("c")
+                .endObject();
+
+        assertEquals("{\"a\":{\"x\":[1]},\"b\":\"c\"}", json.toString());
+    }
+
+    @Test
+    public void escapesQuotesBackslashesAndControlCharacters() {
+        assertEquals("\"a\\\"b\\\\c\"", string("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\"", string("\n\r\t"));
+        assertEquals("\"\\u0001\\u001f\\u0000\"", string("\u0001\u001f\u0000"));
+        assertEquals("\"/ \u007f\"", string("/ \u007f"));
+    }
+
+    @Test
+    public void escapesLineAndParagraphSeparators() {
+        assertEquals("\"a\\u2028b\\u2029c\"", string("a\u2028b\u2029c"));
+    }
+
+    @Test
+    public void encodesUtf8IncludingSurrogatePairs() {
+        JsonWriter json = new JsonWriter().value("é€😀");
+
+        byte[] expected = "\"é€😀\"".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, json.toByteArray());
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        assertEquals("\"a?b?\"", string("a\uD83Db\uDE00"));
+    }
+
+    @Test
+    public void wholeNumbersHaveNoFraction() {
+        assertEquals("21", number(21.0));
+        assertEquals("-3", number(-3.0));
+        assertEquals("0", number(-0.0));
+        assertEquals("1.0E15", number(1e15));
+        assertEquals("-9223372036854775808", new JsonWriter().value(Long.MIN_VALUE).toString());
+    }
+
+    @Test
+    public void nanAndInfinityAreNull() {
+        assertEquals("null", number(Double.NaN));
+        assertEquals("null", number(Double.POSITIVE_INFINITY));
+        assertEquals("null", new JsonWriter().value(Double.NEGATIVE_INFINITY, 1).toString());
+    }
+
+    @Test
+    public void decimalsMatchDoubleToString() {
+        for (int hundredths = -100_000; hundredths <= 100_000; hundredths++) {
+            double value = hundredths / 100.0;
+            if (value == Math.rint(value)) continue;
+            assertEquals(Double.toString(value), number(value));
+        }
+        assertEquals("0.30000000000000004", number(0.1 + 0.2));
+        assertEquals("1.0E-4", number(0.0001));
+    }
+
+    @Test
+    public void anyDoubleReadsBackExactly() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 6);
+            assertEquals(value, Double.parseDouble(number(value)), 0);
+        }
+    }
+
+    @Test
+    public void fixedDecimalsLikeMqttPayloads() {
+        assertEquals("21.0", new JsonWriter().value(21.0, 1).toString());
+        assertEquals("21.3", new JsonWriter().value(21.26, 1).toString());
+    }
+
+    @Test
+    public void resetReusesTheWriter() {
+        JsonWriter json = new JsonWriter(16);
+        json.beginObject().name("long").value("x".repeat(100)).endObject();
+        json.reset().beginArray().value(1).endArray();
+
+        assertEquals("[1]", json.toString());
+    }
+
+    @Test
+    public void inputStreamHasTheWrittenBytes() throws Exception {
+        JsonWriter json = new JsonWriter().beginObject().name("a").value("b").endObject();
+
+        try (InputStream in = json.toInputStream()) {
+            assertArrayEquals(json.toByteArray(), in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void appendWritesPlainText() {
+        JsonWriter text = new JsonWriter().append("metric ").append('1').append("x é\n", 1, 3);
+
+        assertEquals("metric 1 é", text.toString());
+    }
+
+    @Test
+    public void outputParsesWithOrgJson() {
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("success").value(true)
+                .name("temperature").value(21.5)
+                .name("name").value("Küche \"2\"\n")
+                .endObject();
+
+        JSONObject parsed = new JSONObject(json.toString());
+        assertEquals(true, parsed.getBoolean("success"));
+        assertEquals(21.5, parsed.getDouble("temperature"), 0);
+        assertEquals("Küche \"2\"\n", parsed.getString("name"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.stretter.shellyelevateservice.helper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private String prometheus() throws Exception {
+        StringBuilder out = new StringBuilder();
+        registry.writePrometheus(out);
+        return out.toString();
+    }
+
+    @Test
+    public void latencySummariesAreExportedInSeconds() throws Exception {
+        MetricsRegistry.Histogram latency = registry.histogram("http_request_duration_ms", "route", "/");
+        latency.record(12.5);
+        latency.record(12.5);
+
+        String text = prometheus();
+
+        assertTrue(text, text.contains("# TYPE http_request_duration_seconds summary\n"));
+        assertTrue(text, text.contains("http_request_duration_seconds{route=\"/\",quantile=\"0.5\"} 0.0125\n"));
+        assertTrue(text, text.contains("http_request_duration_seconds_sum{route=\"/\"} 0.025\n"));
+        assertTrue(text, text.contains("http_request_duration_seconds_count{route=\"/\"} 2\n"));
+        assertFalse(text, text.contains("_ms"));
+    }
+
+    @Test
+    public void millisecondGaugesAreExportedInSeconds() throws Exception {
+        registry.gauge("mqtt_last_reconnect_ms", () -> 1500);
+        registry.gauge("gc_time_ms_total", () -> 250);
+        registry.gauge("thread_count", () -> 12);
+
+        String text = prometheus();
+
+        assertTrue(text, text.contains("mqtt_last_reconnect_seconds 1.5\n"));
+        assertTrue(text, text.contains("# TYPE gc_time_seconds_total counter\ngc_time_seconds_total 0.25\n"));
+        assertTrue(text, text.contains("thread_count 12\n"));
+    }
+}
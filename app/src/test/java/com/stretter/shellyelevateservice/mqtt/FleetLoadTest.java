@@ -0,0 +1,34 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Fleet load simulation, skipped unless a fleet size is given:
+ * {@code ./gradlew testDebugUnitTest --tests '*FleetLoadTest' -Pfleet.instances=50}
+ *
+ * The report goes to build/reports/fleet-load.txt, or wherever fleet.report points.
+ */
+public class FleetLoadTest {
+
+    @Test
+    public void fleetSyncsThroughEveryStorm() throws Exception {
+        FleetSimulator.Config config = FleetSimulator.Config.fromSystemProperties();
+        assumeTrue("set fleet.instances to run the fleet simulation", config.instances > 0);
+
+        try (FleetSimulator fleet = new FleetSimulator(config)) {
+            String report = fleet.run();
+            Path file = Paths.get(System.getProperty("fleet.report", "build/reports/fleet-load.txt"));
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            Files.write(file, report.getBytes(StandardCharsets.UTF_8));
+            assertTrue(report, !report.contains("did not settle"));
+        }
+    }
+}
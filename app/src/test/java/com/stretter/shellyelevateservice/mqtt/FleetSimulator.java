@@ -0,0 +1,372 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static com.stretter.shellyelevateservice.Constants.MQTT_TOPIC_HOME_ASSISTANT_STATUS;
+
+import com.hivemq.embedded.EmbeddedHiveMQ;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Runs a fleet of {@link SimulatedDisplay}s against an embedded HiveMQ CE (MQTT 5) broker on
+ * localhost and measures what a large install sees:
+ *
+ * 1. startup storm: every display connects and sends its status burst at once
+ * 2. steady state: sensor traffic, end-to-end probe latency through the broker
+ * 3. discovery storm: Home Assistant's birth message makes every display republish discovery
+ * 4. reconnect storm: the broker goes away for a while, every display backs off and resyncs
+ *
+ * An observer client subscribed to the whole tree plays Home Assistant. A display counts as synced
+ * once the broker acknowledged its whole status burst after a (re)connect, the same point
+ * MQTTServer records as time to synced. Everything runs in one JVM on one host, so the numbers show how the fleet's own behaviour (backoff, jitter, queueing)
+ * scales, not what a real network adds.
+ */
+class FleetSimulator implements AutoCloseable {
+
+    static final class Config {
+        int instances;
+        int steadySec;
+        long sensorIntervalMs;
+        int outageSec;
+        int sensorExpirySec = 60;
+        int birthJitterMs;
+        boolean consolidatedState;
+        boolean diagnostics;
+
+        static Config fromSystemProperties() {
+            Config config = new Config();
+            config.instances = Integer.getInteger("fleet.instances", 0);
+            config.steadySec = Integer.getInteger("fleet.steadySec", 30);
+            config.sensorIntervalMs = Long.getLong("fleet.sensorIntervalMs", 5000);
+            config.outageSec = Integer.getInteger("fleet.outageSec", 5);
+            config.birthJitterMs = Integer.getInteger("fleet.birthJitterMs", 10000);
+            config.consolidatedState = Boolean.parseBoolean(System.getProperty("fleet.consolidated", "false"));
+            config.diagnostics = Boolean.parseBoolean(System.getProperty("fleet.diagnostics", "true"));
+            return config;
+        }
+    }
+
+    /**
+     * Counters the displays report into. The sync and connect counts are per phase, {@link #resetPhase()}
+     * starts a new one.
+     */
+    static final class Stats {
+        final AtomicLong connectAttempts = new AtomicLong();
+        final AtomicLong connectFailures = new AtomicLong();
+        final AtomicLong connectionsLost = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicInteger connectedCount = new AtomicInteger();
+        final AtomicInteger syncedCount = new AtomicInteger();
+        private final int window;
+        volatile MetricsRegistry.Histogram connectMs;
+        volatile MetricsRegistry.Histogram syncMs;
+
+        Stats(int window) {
+            this.window = window;
+            resetPhase();
+        }
+
+        void resetPhase() {
+            connectMs = new MetricsRegistry.Histogram(window);
+            syncMs = new MetricsRegistry.Histogram(window);
+            connectAttempts.set(0);
+            connectFailures.set(0);
+            connectionsLost.set(0);
+            connectedCount.set(0);
+            syncedCount.set(0);
+        }
+
+        void connected(long nanos) {
+            connectMs.record(nanos / 1e6);
+            connectedCount.incrementAndGet();
+        }
+
+        void synced(long nanos) {
+            syncMs.record(nanos / 1e6);
+            syncedCount.incrementAndGet();
+        }
+    }
+
+    private static final String OBSERVER_ID = "fleet-observer";
+    private static final long RATE_SAMPLE_MS = 100;
+
+    final Config config;
+    final Stats stats;
+    private final List<SimulatedDisplay> displays = new ArrayList<>();
+    // JVM gauges behind the displays' diagnostics documents
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final ScheduledExecutorService scheduler;
+    private final Path brokerHome;
+    private final int port;
+    private EmbeddedHiveMQ broker;
+    private MqttAsyncClient observer;
+
+    private final AtomicLong received = new AtomicLong();
+    private final Set<String> discovered = ConcurrentHashMap.newKeySet();
+    private volatile MetricsRegistry.Histogram probeMs;
+    private volatile long peakRate;
+    private long lastSampleCount;
+    private ScheduledFuture<?> sampler;
+
+    private final StringBuilder report = new StringBuilder();
+
+    FleetSimulator(Config config) throws IOException {
+        this.config = config;
+        int window = Math.max(4096, config.instances * 8);
+        this.stats = new Stats(window);
+        this.probeMs = new MetricsRegistry.Histogram(window);
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(2, Math.min(config.instances, 8)));
+        this.brokerHome = Files.createTempDirectory("fleet-broker");
+        Runtime runtime = Runtime.getRuntime();
+        metrics.gauge("heap_used_bytes", () -> runtime.totalMemory() - runtime.freeMemory());
+        metrics.gauge("thread_count", Thread::activeCount);
+        try (ServerSocket socket = new ServerSocket(0)) {
+            this.port = socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Run every phase and return the report.
+     */
+    String run() throws Exception {
+        line("fleet: %d displays, sensor interval %d ms, outage %d s, birth jitter %d ms%s%s",
+                config.instances, config.sensorIntervalMs, config.outageSec, config.birthJitterMs,
+                config.consolidatedState ? ", consolidated state" : "", config.diagnostics ? ", diagnostics" : "");
+        startBroker();
+        startObserver();
+        startupStorm();
+        steadyState();
+        discoveryStorm();
+        reconnectStorm();
+        return report.toString();
+    }
+
+    private void startupStorm() throws IOException, InterruptedException {
+        stats.resetPhase();
+        resetPeakRate();
+        long started = System.nanoTime();
+        String serverUri = "tcp://127.0.0.1:" + port;
+        File dataDir = Files.createDirectories(brokerHome.resolve("displays")).toFile();
+        for (int i = 0; i < config.instances; i++) {
+            SimulatedDisplay display = new SimulatedDisplay(i, serverUri, dataDir, metrics, config, stats, scheduler);
+            displays.add(display);
+            display.start();
+        }
+        boolean allSynced = waitUntil(() -> stats.syncedCount.get() >= config.instances, 60_000 + config.instances * 100L);
+        line("startup storm: %d/%d synced in %d ms, connect p50/p99 %s ms, synced p50/p99 %s ms, %d connect failures, peak %d msgs/s",
+                stats.syncedCount.get(), config.instances, elapsedMs(started), p50p99(stats.connectMs),
+                p50p99(stats.syncMs), stats.connectFailures.get(), peakRate);
+        if (!allSynced) line("  startup storm did not settle");
+    }
+
+    private void steadyState() throws InterruptedException {
+        probeMs = new MetricsRegistry.Histogram(Math.max(4096, config.instances * 8));
+        long publishedBefore = publishedCount();
+        long receivedBefore = received.get();
+        long started = System.nanoTime();
+        Thread.sleep(config.steadySec * 1000L);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        double[] e2e = probeMs.percentiles(50, 90, 99);
+        line("steady state: %.0f msgs/s published, %.0f msgs/s received, e2e p50/p90/p99 %.2f/%.2f/%.2f ms (max %.2f, %d probes)",
+                (publishedCount() - publishedBefore) / seconds, (received.get() - receivedBefore) / seconds,
+                e2e[0], e2e[1], e2e[2], probeMs.max(), probeMs.getCount());
+        line("  publisher queues: %d coalesced, %d dropped, %d failed, deepest %d",
+                sum(MqttPublisher::getCoalescedCount), sum(MqttPublisher::getDroppedCount),
+                sum(MqttPublisher::getFailedCount), displays.stream().mapToInt(d -> d.getPublisher().getMaxQueueDepth()).max().orElse(0));
+    }
+
+    private void discoveryStorm() throws Exception {
+        discovered.clear();
+        resetPeakRate();
+        long started = System.nanoTime();
+        MqttMessage birth = new MqttMessage("online".getBytes(StandardCharsets.UTF_8));
+        birth.setQos(1);
+        observer.publish(MQTT_TOPIC_HOME_ASSISTANT_STATUS, birth);
+        // Every display waits a random part of the jitter window before answering
+        boolean allDiscovered = waitUntil(() -> discovered.size() >= config.instances, config.birthJitterMs + 30_000L);
+        line("discovery storm: %d/%d configs in %d ms, peak %d msgs/s",
+                discovered.size(), config.instances, elapsedMs(started), peakRate);
+        if (!allDiscovered) line("  discovery storm did not settle");
+    }
+
+    private void reconnectStorm() throws Exception {
+        stats.resetPhase();
+        // Clients drop as soon as the shutdown starts, close() returns seconds later
+        long stopped = System.nanoTime();
+        broker.close();
+        Thread.sleep(config.outageSec * 1000L);
+        long attemptsDuringOutage = stats.connectAttempts.get();
+        resetPeakRate();
+        startBroker();
+        long restarted = System.nanoTime();
+        boolean allSynced = waitUntil(() -> stats.syncedCount.get() >= config.instances, 120_000);
+        line("reconnect storm: %d lost, %d attempts during the %d s outage, %d/%d synced %d ms after restart (%d ms after stop)",
+                stats.connectionsLost.get(), attemptsDuringOutage, config.outageSec, stats.syncedCount.get(),
+                config.instances, elapsedMs(restarted), elapsedMs(stopped));
+        line("  connect p50/p99 %s ms from loss, synced p50/p99 %s ms from loss, %d connect failures, peak %d msgs/s",
+                p50p99(stats.connectMs), p50p99(stats.syncMs), stats.connectFailures.get(), peakRate);
+        if (!allSynced) line("  reconnect storm did not settle");
+    }
+
+    // A stopped embedded broker can't be started again, every start builds a fresh one
+    private void startBroker() throws Exception {
+        Path conf = Files.createDirectories(brokerHome.resolve("conf"));
+        Files.write(conf.resolve("config.xml"), ("<?xml version=\"1.0\"?>\n<hivemq>\n"
+                + "  <listeners><tcp-listener><port>" + port + "</port><bind-address>127.0.0.1</bind-address></tcp-listener></listeners>\n"
+                + "  <persistence><mode>in-memory</mode></persistence>\n"
+                + "  <anonymous-usage-statistics><enabled>false</enabled></anonymous-usage-statistics>\n"
+                + "</hivemq>\n").getBytes(StandardCharsets.UTF_8));
+        broker = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(conf)
+                .withDataFolder(Files.createDirectories(brokerHome.resolve("data")))
+                .withExtensionsFolder(Files.createDirectories(brokerHome.resolve("extensions")))
+                .build();
+        broker.start().join();
+    }
+
+    private void startObserver() throws Exception {
+        observer = new MqttAsyncClient("tcp://127.0.0.1:" + port, OBSERVER_ID, new MemoryPersistence());
+        observer.setCallback(new ObserverCallback());
+        MqttConnectionOptions options = new MqttConnectionOptions();
+        options.setAutomaticReconnect(true);
+        options.setAutomaticReconnectDelay(1, 2);
+        options.setCleanStart(true);
+        observer.connect(options).waitForCompletion(10_000);
+        sampler = scheduler.scheduleAtFixedRate(this::sampleRate, RATE_SAMPLE_MS, RATE_SAMPLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void subscribeObserver() {
+        try {
+            observer.subscribe(new String[]{"shellyelevateservice/#", "homeassistant/device/+/config"}, new int[]{0, 0});
+        } catch (MqttException e) {
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    private void sampleRate() {
+        long count = received.get();
+        long rate = (count - lastSampleCount) * 1000 / RATE_SAMPLE_MS;
+        lastSampleCount = count;
+        if (rate > peakRate) peakRate = rate;
+    }
+
+    private void resetPeakRate() {
+        peakRate = 0;
+    }
+
+    private long publishedCount() {
+        return sum(MqttPublisher::getPublishedCount);
+    }
+
+    private long sum(ToLongFunction<MqttPublisher> counter) {
+        long total = 0;
+        for (SimulatedDisplay display : displays) total += counter.applyAsLong(display.getPublisher());
+        return total;
+    }
+
+    private static boolean waitUntil(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static long elapsedMs(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1_000_000;
+    }
+
+    private static String p50p99(MetricsRegistry.Histogram histogram) {
+        double[] p = histogram.percentiles(50, 99);
+        return String.format(Locale.ROOT, "%.0f/%.0f", p[0], p[1]);
+    }
+
+    private void line(String format, Object... args) {
+        report.append(String.format(Locale.ROOT, format, args)).append('\n');
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (sampler != null) sampler.cancel(false);
+        for (SimulatedDisplay display : displays) display.stop();
+        if (observer != null) {
+            try {
+                observer.disconnectForcibly(1000);
+            } catch (MqttException e) {
+                // Broker may already be gone
+            }
+            observer.close();
+        }
+        scheduler.shutdownNow();
+        if (broker != null) broker.close();
+        try (Stream<Path> files = Files.walk(brokerHome)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private class ObserverCallback implements MqttCallback {
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            received.incrementAndGet();
+            if (topic.endsWith("/probe")) {
+                long sentNanos = Long.parseLong(new String(message.getPayload(), StandardCharsets.US_ASCII));
+                probeMs.record((System.nanoTime() - sentNanos) / 1e6);
+            } else if (topic.startsWith("homeassistant/device/") && message.getPayload().length > 0) {
+                discovered.add(topic);
+            }
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            subscribeObserver();
+        }
+
+        @Override
+        public void disconnected(MqttDisconnectResponse disconnectResponse) {
+        }
+
+        @Override
+        public void mqttErrorOccurred(MqttException exception) {
+            stats.errors.incrementAndGet();
+        }
+
+        @Override
+        public void deliveryComplete(IMqttToken token) {
+        }
+
+        @Override
+        public void authPacketArrived(int reasonCode, MqttProperties properties) {
+        }
+    }
+}
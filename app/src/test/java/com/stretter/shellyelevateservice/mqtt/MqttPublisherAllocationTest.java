@@ -0,0 +1,80 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.stretter.shellyelevateservice.AllocationMeter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The steady-state sensor path: values enqueued with {@link MqttPublisher#publishNumber} while
+ * the topic's slot is waiting in the queue. There is no client, so nothing is sent and the slots
+ * stay queued, which is what happens between two dispatches.
+ *
+ * Sending is not covered: it still allocates a copy of the slot payload (Paho keeps a reference
+ * to the array it is given) and an MqttMessage per publish, plus MqttProperties when the topic
+ * has an expiry.
+ */
+public class MqttPublisherAllocationTest {
+
+    private static final int RUNS = 200_000;
+    private static final String[] TOPICS = {"shellyelevateservice/test/temp", "shellyelevateservice/test/hum",
+            "shellyelevateservice/test/lux"};
+
+    private MqttPublisher publisher;
+    private int counter;
+
+    @Before
+    public void setUp() {
+        publisher = new MqttPublisher(16, 10);
+        for (String topic : TOPICS) {
+            publisher.setPolicy(topic, MqttPublisher.Policy.STATE.withExpiry(60));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        publisher.shutdown();
+    }
+
+    private void publishNext() {
+        int i = counter++;
+        publisher.publishNumber(TOPICS[i % TOPICS.length], 20 + (i % 100) / 10.0, 1);
+    }
+
+    @Test
+    public void publishNumberDoesNotAllocateOnceSlotsExist() {
+        assumeTrue(AllocationMeter.isSupported());
+
+        double bytesPerPublish = AllocationMeter.bytesPerRun(RUNS, this::publishNext);
+
+        // Anything per publish would show up as at least 16 bytes per run
+        assertTrue("Allocated " + bytesPerPublish + " bytes per publish", bytesPerPublish < 1);
+        assertEquals(TOPICS.length, publisher.getQueueDepth());
+    }
+
+    @Test
+    public void encodeNumberDoesNotAllocate() {
+        assumeTrue(AllocationMeter.isSupported());
+
+        byte[] buffer = new byte[PayloadEncoder.MAX_NUMBER_LENGTH];
+        double bytesPerEncode = AllocationMeter.bytesPerRun(RUNS,
+                () -> PayloadEncoder.encodeNumber(21.5 + (counter++ % 100) / 100.0, 2, buffer, 0));
+
+        assertTrue("Allocated " + bytesPerEncode + " bytes per encode", bytesPerEncode < 1);
+    }
+
+    @Test
+    public void coalescedSlotHoldsTheLatestValue() {
+        String topic = TOPICS[0];
+        publisher.publishNumber(topic, 21.0, 1);
+        publisher.publishNumber(topic, 21.5, 1);
+
+        assertEquals(1, publisher.getQueueDepth());
+        assertEquals(1, publisher.getCoalescedCount());
+    }
+}
@@ -0,0 +1,155 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The explicit topic aliases have to match what Paho assigns on its own: one per new topic in
+ * send order, up to the broker's maximum, starting over on every connection.
+ */
+public class MqttPublisherTopicAliasTest {
+
+    private static final String TEMP = "shellyelevateservice/test/temp";
+    private static final String HUM = "shellyelevateservice/test/hum";
+    private static final String LUX = "shellyelevateservice/test/lux";
+    private static final String HELLO = "shellyelevateservice/test/hello";
+
+    private MqttPublisher publisher;
+    private RecordingClient client;
+
+    @Before
+    public void setUp() throws MqttException {
+        publisher = new MqttPublisher(16, 10);
+        MqttPublisher.Policy aliased = MqttPublisher.Policy.STATE.withExpiry(60).withTopicAlias();
+        publisher.setPolicy(TEMP, aliased);
+        publisher.setPolicy(HUM, aliased);
+        publisher.setPolicy(LUX, aliased);
+        client = new RecordingClient();
+        publisher.setClient(client);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.shutdown();
+    }
+
+    @Test
+    public void firstTopicsOfAConnectionTakeTheAliases() throws Exception {
+        publisher.resetTopicAliases();
+        publisher.setTopicAliasMaximum(3);
+
+        publisher.publishNumber(TEMP, 21.5, 1);
+        publisher.publishNumber(HUM, 40, 1);
+        publisher.publish(HELLO, bytes("{}"));
+        publisher.publishNumber(LUX, 120, 2);
+        awaitSent(4);
+        publisher.publishNumber(TEMP, 22, 1);
+        awaitSent(5);
+
+        assertEquals(1, client.alias(0));
+        assertEquals(2, client.alias(1));
+        // Paho gives hello the third alias by itself, nothing to set for a once per connection topic
+        assertEquals(0, client.alias(2));
+        // Out of aliases
+        assertEquals(0, client.alias(3));
+        assertEquals(1, client.alias(4));
+    }
+
+    @Test
+    public void aliasesStartOverOnReconnect() throws Exception {
+        publisher.resetTopicAliases();
+        publisher.setTopicAliasMaximum(2);
+        publisher.publishNumber(TEMP, 21.5, 1);
+        awaitSent(1);
+
+        publisher.resetTopicAliases();
+        publisher.setTopicAliasMaximum(2);
+        publisher.publish(HELLO, bytes("{}"));
+        publisher.publishNumber(HUM, 40, 1);
+        publisher.publishNumber(TEMP, 22, 1);
+        awaitSent(4);
+
+        assertEquals(1, client.alias(0));
+        assertEquals(2, client.alias(2));
+        assertEquals(0, client.alias(3));
+    }
+
+    @Test
+    public void noAliasesWithoutABrokerMaximum() throws Exception {
+        publisher.resetTopicAliases();
+        publisher.setTopicAliasMaximum(0);
+        publisher.publishNumber(TEMP, 21.5, 1);
+        awaitSent(1);
+
+        assertEquals(0, client.alias(0));
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.sent() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Only " + client.sent() + " of " + count + " sent", client.sent() >= count);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Connected client that records the topic alias of every publish and acknowledges it.
+     */
+    private static class RecordingClient extends MqttAsyncClient {
+        private final List<Integer> aliases = new ArrayList<>();
+
+        RecordingClient() throws MqttException {
+            super("tcp://localhost:1883", "alias-test", new MemoryPersistence());
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public IMqttToken publish(String topic, MqttMessage message, Object userContext,
+                                 MqttActionListener callback) {
+            MqttProperties properties = message.getProperties();
+            Integer alias = properties != null ? properties.getTopicAlias() : null;
+            synchronized (aliases) {
+                aliases.add(alias != null ? alias : 0);
+            }
+            callback.onSuccess(null);
+            return null;
+        }
+
+        int sent() {
+            synchronized (aliases) {
+                return aliases.size();
+            }
+        }
+
+        int alias(int index) {
+            synchronized (aliases) {
+                return aliases.get(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PayloadEncoderTest {
+
+    private static String encode(double value, int maxDecimals) {
+        byte[] buffer = new byte[PayloadEncoder.MAX_NUMBER_LENGTH];
+        int length = PayloadEncoder.encodeNumber(value, maxDecimals, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void temperatureAndHumidityMatchFloatToString() {
+        // Sensor range of the temp/hum topics, published with one decimal
+        for (int tenths = -400; tenths <= 1250; tenths++) {
+            float value = tenths / 10f;
+            if (value == 0) continue;
+            assertEquals(String.valueOf(value), encode(value, 1));
+        }
+    }
+
+    @Test
+    public void luxAndProximityMatchFloatToString() {
+        // Two decimals, as lux and proximity are published
+        for (int hundredths = 1; hundredths <= 200_000; hundredths++) {
+            float value = hundredths / 100f;
+            assertEquals(String.valueOf(value), encode(value, 2));
+        }
+    }
+
+    @Test
+    public void wholeNumbersKeepOneDecimal() {
+        assertEquals("255.0", encode(255, 1));
+        assertEquals("100000.0", encode(100000, 2));
+        assertEquals("0.0", encode(0, 2));
+        assertEquals("7", encode(7, 0));
+    }
+
+    @Test
+    public void roundsToMaxDecimals() {
+        assertEquals("21.3", encode(21.26, 1));
+        assertEquals("21.2", encode(21.24, 1));
+        assertEquals("-3.5", encode(-3.46, 1));
+        assertEquals("0.123457", encode(0.1234567, 9));
+    }
+
+    @Test
+    public void negativeZeroAfterRoundingHasNoSign() {
+        assertEquals("0.0", encode(-0.04, 1));
+    }
+
+    @Test
+    public void unusualValuesTakeTheSlowPath() {
+        assertEquals("NaN", encode(Double.NaN, 1));
+        assertEquals("Infinity", encode(Double.POSITIVE_INFINITY, 1));
+        assertEquals("1.0E13", encode(1e13, 1));
+    }
+
+    @Test
+    public void writesAtOffset() {
+        byte[] buffer = "temp=".getBytes(StandardCharsets.US_ASCII);
+        buffer = Arrays.copyOf(buffer, 5 + PayloadEncoder.MAX_NUMBER_LENGTH);
+        int length = PayloadEncoder.encodeNumber(21.5, 1, buffer, 5);
+        assertEquals("temp=21.5", new String(buffer, 0, 5 + length, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void formatNumberMatchesEncode() {
+        assertEquals("45.0", PayloadEncoder.formatNumber(45, 1));
+        assertEquals("120.25", PayloadEncoder.formatNumber(120.25, 2));
+    }
+}
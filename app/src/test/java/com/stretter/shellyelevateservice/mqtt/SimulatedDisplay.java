@@ -0,0 +1,274 @@
+package com.stretter.shellyelevateservice.mqtt;
+
+import static com.stretter.shellyelevateservice.Constants.MQTT_TOPIC_HOME_ASSISTANT_STATUS;
+
+import com.stretter.shellyelevateservice.DeviceModel;
+import com.stretter.shellyelevateservice.helper.MetricsRegistry;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One display of the simulated fleet. It runs the device's own publish code against a real broker:
+ * {@link DeviceStatePublisher} (status burst, discovery, offline buffer replay, diagnostics) on top
+ * of {@link MqttPublisher}, with MQTTServer's reconnect backoff. Only the hardware is fake, sensor
+ * readings are a random walk.
+ *
+ * Every sensor tick also publishes a probe carrying {@link System#nanoTime()}, the fleet's
+ * observer turns it into end-to-end latency through the broker.
+ */
+class SimulatedDisplay {
+
+    private static final int OFFLINE_BUFFER_BYTES = 256 * 1024;
+
+    final String clientId;
+    final String probeTopic;
+    private final MqttTopics topics;
+    private final MqttPublisher publisher = new MqttPublisher();
+    private final DeviceStatePublisher statePublisher;
+    private final FleetSimulator.Config config;
+    private final FleetSimulator.Stats stats;
+    private final ScheduledExecutorService scheduler;
+    private final String serverUri;
+    private final Random random;
+
+    private volatile MqttAsyncClient client;
+    private volatile boolean running = true;
+    private int retryAttempt;
+    // Start of the current (re)connect, the acknowledged status burst ends it
+    private volatile long connectStartedNanos;
+    private ScheduledFuture<?> sensors;
+    private ScheduledFuture<?> ticks;
+    private volatile double temp = 21;
+    private volatile double hum = 45;
+    private volatile double lux = 120;
+
+    SimulatedDisplay(int index, String serverUri, File dataDir, MetricsRegistry metrics, FleetSimulator.Config config,
+                     FleetSimulator.Stats stats, ScheduledExecutorService scheduler) {
+        this.clientId = String.format("sim%04d", index);
+        this.probeTopic = "shellyelevateservice/" + clientId + "/probe";
+        this.topics = new MqttTopics(clientId, DeviceModel.BLAKE);
+        this.serverUri = serverUri;
+        this.config = config;
+        this.stats = stats;
+        this.scheduler = scheduler;
+        this.random = new Random(index);
+
+        OfflineBuffer offlineBuffer = new OfflineBuffer(new File(dataDir, clientId + ".buf"), OFFLINE_BUFFER_BYTES);
+        statePublisher = new DeviceStatePublisher(topics, DeviceModel.BLAKE, publisher, offlineBuffer,
+                new ReportingPolicy(), scheduler, new Link(), new Readings());
+        statePublisher.setAppInfo("com.stretter.shellyelevateservice", "sim");
+        statePublisher.setMetrics(metrics, stats.connectionsLost::get);
+        statePublisher.configure(config.consolidatedState, config.diagnostics);
+        statePublisher.registerPublishPolicies(config.sensorExpirySec);
+    }
+
+    void start() {
+        connectStartedNanos = System.nanoTime();
+        connect();
+        // Spread the ticks over the interval like independently booted devices
+        sensors = scheduler.scheduleAtFixedRate(this::sensorTick, random.nextInt((int) config.sensorIntervalMs),
+                config.sensorIntervalMs, TimeUnit.MILLISECONDS);
+        ticks = scheduler.scheduleAtFixedRate(() -> statePublisher.tick(System.currentTimeMillis()),
+                random.nextInt(1000), 1000, TimeUnit.MILLISECONDS);
+    }
+
+    private void connect() {
+        if (!running) return;
+        try {
+            if (client == null) {
+                MqttAsyncClient created = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+                created.setCallback(new Callback());
+                publisher.setClient(created);
+                client = created;
+            }
+            MqttConnectionOptions options = new MqttConnectionOptions();
+            options.setAutomaticReconnect(false);
+            options.setConnectionTimeout(5);
+            options.setCleanStart(true);
+            MqttMessage will = new MqttMessage("offline".getBytes(StandardCharsets.UTF_8));
+            will.setQos(1);
+            will.setRetained(true);
+            options.setWill(topics.status, will);
+
+            stats.connectAttempts.incrementAndGet();
+            publisher.resetTopicAliases();
+            client.connect(options, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    onConnected(token);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    onConnectFailed();
+                }
+            });
+        } catch (MqttException e) {
+            onConnectFailed();
+        }
+    }
+
+    private void onConnected(IMqttToken token) {
+        retryAttempt = 0;
+        long started = connectStartedNanos;
+        stats.connected(System.nanoTime() - started);
+        MqttProperties connack = token.getResponseProperties();
+        Integer topicAliasMaximum = connack != null ? connack.getTopicAliasMaximum() : null;
+        publisher.setTopicAliasMaximum(topicAliasMaximum != null ? topicAliasMaximum : 0);
+        Integer receiveMaximum = connack != null ? connack.getReceiveMaximum() : null;
+        publisher.setMaxInflight(Math.min(receiveMaximum != null ? receiveMaximum : 65535, 32));
+        publisher.wake();
+
+        scheduler.execute(() -> {
+            try {
+                client.subscribe(topics.subscription, 1);
+                client.subscribe(MQTT_TOPIC_HOME_ASSISTANT_STATUS, 1);
+            } catch (MqttException e) {
+                stats.errors.incrementAndGet();
+            }
+            statePublisher.publishStatus(() -> stats.synced(System.nanoTime() - started));
+        });
+    }
+
+    private void onConnectFailed() {
+        stats.connectFailures.incrementAndGet();
+        scheduleRetry();
+    }
+
+    private void onConnectionLost() {
+        stats.connectionsLost.incrementAndGet();
+        connectStartedNanos = System.nanoTime();
+        scheduleRetry();
+    }
+
+    private void scheduleRetry() {
+        if (!running) return;
+        long delay = MQTTServer.retryDelayMs(retryAttempt++);
+        scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void sensorTick() {
+        temp += (random.nextDouble() - 0.5) * 0.4;
+        hum += (random.nextDouble() - 0.5) * 1.0;
+        lux = Math.max(0, lux + (random.nextDouble() - 0.5) * 20);
+        statePublisher.report(ReportingPolicy.Sensor.TEMP, temp);
+        statePublisher.report(ReportingPolicy.Sensor.HUM, hum);
+        statePublisher.report(ReportingPolicy.Sensor.LUX, lux);
+        MqttAsyncClient current = client;
+        if (current != null && current.isConnected()) {
+            publisher.publish(probeTopic, Long.toString(System.nanoTime()).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    MqttPublisher getPublisher() {
+        return publisher;
+    }
+
+    void stop() {
+        running = false;
+        if (sensors != null) sensors.cancel(false);
+        if (ticks != null) ticks.cancel(false);
+        publisher.shutdown();
+        if (client == null) return;
+        try {
+            if (client.isConnected()) client.disconnectForcibly(1000);
+            client.close();
+        } catch (MqttException e) {
+            // Shutting down anyway
+        }
+    }
+
+    private class Link implements DeviceStatePublisher.Link {
+        @Override
+        public boolean isEnabled() {
+            return running;
+        }
+
+        @Override
+        public boolean isConnected() {
+            MqttAsyncClient current = client;
+            return current != null && current.isConnected();
+        }
+    }
+
+    private class Readings implements DeviceStatePublisher.Readings {
+        @Override
+        public double temperature() {
+            return temp;
+        }
+
+        @Override
+        public double humidity() {
+            return hum;
+        }
+
+        @Override
+        public boolean relay(int num) {
+            return false;
+        }
+
+        @Override
+        public float lux() {
+            return (float) lux;
+        }
+
+        @Override
+        public float screenBrightness() {
+            return 255;
+        }
+
+        @Override
+        public float proximity() {
+            return 12.5f;
+        }
+    }
+
+    private class Callback implements MqttCallback {
+        @Override
+        public void disconnected(MqttDisconnectResponse disconnectResponse) {
+            if (running) onConnectionLost();
+        }
+
+        @Override
+        public void mqttErrorOccurred(MqttException exception) {
+            stats.errors.incrementAndGet();
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            // Same handling as ShellyElevateMQTTCallback: jittered rediscovery
+            if (MQTT_TOPIC_HOME_ASSISTANT_STATUS.equals(topic)
+                    && "online".equals(new String(message.getPayload(), StandardCharsets.UTF_8))) {
+                statePublisher.onHomeAssistantOnline(config.birthJitterMs);
+            }
+        }
+
+        @Override
+        public void deliveryComplete(IMqttToken token) {
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+        }
+
+        @Override
+        public void authPacketArrived(int reasonCode, MqttProperties properties) {
+        }
+    }
+}